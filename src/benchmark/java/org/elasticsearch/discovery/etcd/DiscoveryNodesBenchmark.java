@@ -0,0 +1,110 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.Version;
+import org.elasticsearch.cloud.etcd.EtcdService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.transport.local.LocalTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full {@link EtcdUnicastHostsProvider#discoveryNodes()} round against an HTTP server answering every read with the
+ * same synthetic listing. Addresses go through the local transport, so no DNS lookup is involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryNodesBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int instances;
+
+    @Param({"flat", "transport"})
+    public String layout;
+
+    private HttpServer server;
+
+    private ThreadPool threadPool;
+
+    private EtcdService etcdService;
+
+    private NodeEnvironment nodeEnvironment;
+
+    private EtcdUnicastHostsProvider provider;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] listing = EtcdListings.generate(instances, "transport".equals(layout));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/keys" + EtcdListings.SERVICE_KEY, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("X-Etcd-Index", "2");
+                exchange.sendResponseHeaders(200, listing.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(listing);
+                }
+            }
+        });
+        server.start();
+
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.host", "127.0.0.1:" + server.getAddress().getPort())
+                .put("cloud.etcd.key", EtcdListings.SERVICE_KEY)
+                .put("cloud.etcd.watch.enabled", false)
+                .put("cloud.etcd.snapshot.enabled", false)
+                // every invocation reads etcd, rather than the listing of the previous one
+                .put("cloud.etcd.read.freshness", "0ms")
+                .put("cloud.etcd.limit.reads_per_second", 0)
+                .build();
+        threadPool = new ThreadPool("benchmark");
+        TransportService transportService = new TransportService(new LocalTransport(settings, threadPool, Version.CURRENT), threadPool);
+        etcdService = new EtcdService(settings, threadPool);
+        // a client-only environment has no data path, so nothing is locked or written under ./data
+        Settings clientSettings = ImmutableSettings.settingsBuilder().put("node.client", true).put("node.data", false).build();
+        nodeEnvironment = new NodeEnvironment(clientSettings, new Environment(clientSettings));
+        provider = new EtcdUnicastHostsProvider(settings, transportService, null, threadPool, etcdService, nodeEnvironment);
+    }
+
+    @TearDown
+    public void tearDown() {
+        etcdService.close();
+        nodeEnvironment.close();
+        threadPool.shutdownNow();
+        server.stop(0);
+    }
+
+    @Benchmark
+    public List<DiscoveryNode> discoveryNodes() throws Exception {
+        return provider.discoveryNodes();
+    }
+}
@@ -0,0 +1,375 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cloud.etcd.EtcdService;
+import org.elasticsearch.cloud.etcd.EtcdStubServer;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many {@link EtcdUnicastHostsProvider}s in one JVM against an {@link EtcdStubServer}, scripts a mass start, a
+ * rolling restart or a crash of the cluster, and reports how long the nodes take to see the full membership and the
+ * load they put on etcd. Each simulated node has its own {@link EtcdService} and a transport bound to a distinct
+ * loopback port that is never opened. Arguments are <tt>name=value</tt> pairs, settings are applied to every node:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=org.elasticsearch.discovery.etcd.DiscoverySimulation \
+ *     -Dbenchmark.args="nodes=500 scenario=rolling_restart cloud.etcd.watch.enabled=false"
+ * </pre>
+ */
+public class DiscoverySimulation {
+
+    private static final int BASE_PORT = 20000;
+
+    private final int nodes;
+
+    private final String scenario;
+
+    private final int restarts;
+
+    private final int crashes;
+
+    private final double startsPerSecond;
+
+    private final long pollMillis;
+
+    private final long timeoutMillis;
+
+    private final long idleMillis;
+
+    private final Settings nodeSettings;
+
+    private final EtcdStubServer etcd;
+
+    private final ThreadPool threadPool;
+
+    /** an environment without data paths, shared by the nodes */
+    private final NodeEnvironment nodeEnvironment;
+
+    /** runs the discovery rounds of the nodes that did not converge yet */
+    private final ScheduledThreadPoolExecutor rounds;
+
+    private final Map<Integer, SimulatedNode> running = new LinkedHashMap<>();
+
+    private long phaseStartNanos;
+
+    private long phaseRequests;
+
+    private long phaseGets;
+
+    private long phasePuts;
+
+    private long phaseDeletes;
+
+    private long phaseBytesRead;
+
+    private long phaseBytesWritten;
+
+    public DiscoverySimulation(Map<String, String> options, Settings nodeSettings) throws Exception {
+        this.nodes = Integer.parseInt(option(options, "nodes", "100"));
+        this.scenario = option(options, "scenario", "mass_start");
+        this.restarts = Integer.parseInt(option(options, "restarts", String.valueOf(Math.min(nodes, 20))));
+        this.crashes = Integer.parseInt(option(options, "crashes", String.valueOf(Math.max(1, nodes / 10))));
+        this.startsPerSecond = Double.parseDouble(option(options, "starts_per_second", "0"));
+        this.pollMillis = Long.parseLong(option(options, "poll_ms", "100"));
+        this.timeoutMillis = Long.parseLong(option(options, "timeout_s", "120")) * 1000;
+        this.idleMillis = Long.parseLong(option(options, "idle_s", "10")) * 1000;
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("unknown options " + options.keySet());
+        }
+        if (!Arrays.asList("mass_start", "rolling_restart", "crash").contains(scenario)) {
+            throw new IllegalArgumentException("unknown scenario [" + scenario + "], expected mass_start, rolling_restart or crash");
+        }
+        this.etcd = new EtcdStubServer().start();
+        this.nodeSettings = ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.host", etcd.address())
+                .put("cloud.etcd.key", "/services/simulation")
+                .put("cloud.etcd.interval", 5)
+                // nodes never wait for a peer, the simulation polls until they see the full membership
+                .put("cloud.etcd.bootstrap.single_node", true)
+                .put("cloud.etcd.snapshot.enabled", false)
+                .put(nodeSettings)
+                .build();
+        this.threadPool = new ThreadPool("simulation");
+        Settings clientSettings = ImmutableSettings.settingsBuilder().put("node.client", true).build();
+        this.nodeEnvironment = new NodeEnvironment(clientSettings, new Environment(clientSettings));
+        this.rounds = new ScheduledThreadPoolExecutor(Math.min(nodes, 128),
+                EsExecutors.daemonThreadFactory("simulation_rounds"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("usage: DiscoverySimulation [nodes=100] [scenario=mass_start|rolling_restart|crash] [restarts=20]"
+                        + " [crashes=nodes/10] [starts_per_second=0] [poll_ms=100] [timeout_s=120] [idle_s=10] [<setting>=<value>...]");
+                System.exit(1);
+            }
+            String name = arg.substring(0, eq);
+            if (name.indexOf('.') >= 0) {
+                settings.put(name, arg.substring(eq + 1));
+            } else {
+                options.put(name, arg.substring(eq + 1));
+            }
+        }
+        DiscoverySimulation simulation = new DiscoverySimulation(options, settings.build());
+        try {
+            simulation.run();
+        } finally {
+            simulation.close();
+        }
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        System.out.println(String.format(Locale.ROOT, "%d nodes, scenario %s, settings %s", nodes, scenario,
+                nodeSettings.getByPrefix("cloud.etcd.").getAsMap()));
+        // the crashed nodes keep their registrations, as a killed process would
+        boolean deregister = !"crash".equals(scenario);
+        for (int i = 0; i < nodes; i++) {
+            create(i, deregister);
+        }
+        Set<Integer> all = new HashSet<>(running.keySet());
+        beginPhase();
+        // each node runs its rounds as soon as it started, while the next ones start
+        Convergence massStart = new Convergence(nodes, ports(all));
+        long intervalNanos = startsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / startsPerSecond) : 0;
+        for (int i = 0; i < nodes; i++) {
+            if (intervalNanos > 0) {
+                sleepUntil(phaseStartNanos + i * intervalNanos);
+            }
+            massStart.track(running.get(i), System.nanoTime());
+        }
+        report("mass_start", massStart.await());
+
+        beginPhase();
+        Thread.sleep(idleMillis);
+        report("idle", null);
+
+        if ("rolling_restart".equals(scenario)) {
+            beginPhase();
+            long[] times = new long[restarts];
+            for (int r = 0; r < restarts; r++) {
+                int index = r % nodes;
+                SimulatedNode previous = running.remove(index);
+                SimulatedNode replacement = create(index, deregister);
+                previous.stop();
+                Convergence restart = new Convergence(1, ports(all));
+                restart.track(replacement, System.nanoTime());
+                times[r] = restart.await()[0];
+            }
+            report("rolling_restart", times);
+        } else if ("crash".equals(scenario)) {
+            beginPhase();
+            for (int i = 0; i < crashes; i++) {
+                running.remove(i).stop();
+            }
+            long crashedNanos = System.nanoTime();
+            Convergence crash = new Convergence(running.size(), ports(running.keySet()));
+            for (SimulatedNode survivor : running.values()) {
+                crash.track(survivor, crashedNanos);
+            }
+            report("crash", crash.await());
+        }
+    }
+
+    public void close() {
+        for (SimulatedNode node : running.values()) {
+            node.stop();
+        }
+        running.clear();
+        rounds.shutdownNow();
+        nodeEnvironment.close();
+        threadPool.shutdownNow();
+        etcd.stop();
+    }
+
+    /**
+     * Creates a node, which only registers and reads etcd once its rounds are tracked.
+     */
+    private SimulatedNode create(int index, boolean deregister) {
+        SimulatedNode node = new SimulatedNode(index, ImmutableSettings.settingsBuilder()
+                .put(nodeSettings)
+                .put("name", "node-" + index)
+                .put("cloud.etcd.instance.key", "node-" + index)
+                .put("cloud.etcd.deregister_on_stop", deregister)
+                .build(), threadPool, nodeEnvironment);
+        running.put(index, node);
+        return node;
+    }
+
+    private void beginPhase() {
+        phaseStartNanos = System.nanoTime();
+        phaseRequests = etcd.requests();
+        phaseGets = etcd.requests("GET");
+        phasePuts = etcd.requests("PUT");
+        phaseDeletes = etcd.requests("DELETE");
+        phaseBytesRead = etcd.bytesRead();
+        phaseBytesWritten = etcd.bytesWritten();
+    }
+
+    private void report(String phase, long[] times) {
+        double seconds = (System.nanoTime() - phaseStartNanos) / 1e9;
+        long requests = etcd.requests() - phaseRequests;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-16s %8.1fs", phase, seconds));
+        if (times != null) {
+            long[] converged = converged(times);
+            line.append(String.format(Locale.ROOT, "  converged %d/%d  p50 %dms  p90 %dms  p99 %dms  max %dms", converged.length,
+                    times.length, percentile(converged, 50), percentile(converged, 90), percentile(converged, 99),
+                    percentile(converged, 100)));
+        }
+        line.append(String.format(Locale.ROOT, "  etcd %d requests (%.1f/s, GET %d, PUT %d, DELETE %d)  %.1f KB in  %.1f KB out",
+                requests, requests / seconds, etcd.requests("GET") - phaseGets, etcd.requests("PUT") - phasePuts,
+                etcd.requests("DELETE") - phaseDeletes, (etcd.bytesRead() - phaseBytesRead) / 1024.0,
+                (etcd.bytesWritten() - phaseBytesWritten) / 1024.0));
+        System.out.println(line);
+    }
+
+    private static long[] converged(long[] times) {
+        long[] converged = new long[times.length];
+        int count = 0;
+        for (long time : times) {
+            if (time >= 0) {
+                converged[count++] = time;
+            }
+        }
+        converged = Arrays.copyOf(converged, count);
+        Arrays.sort(converged);
+        return converged;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static Set<String> ports(Set<Integer> indexes) {
+        Set<String> ports = new HashSet<>();
+        for (int index : indexes) {
+            ports.add(String.valueOf(BASE_PORT + index));
+        }
+        return ports;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long remaining = nanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * Runs discovery rounds on each tracked node every <tt>poll_ms</tt> until the addresses it finds are exactly the
+     * expected ones, as a joining node keeps pinging until it found the cluster.
+     */
+    private class Convergence {
+
+        final Set<String> expected;
+
+        final long[] times;
+
+        final CountDownLatch done;
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        int tracked;
+
+        Convergence(int nodes, Set<String> expected) {
+            this.expected = expected;
+            this.times = new long[nodes];
+            this.done = new CountDownLatch(nodes);
+            Arrays.fill(times, -1);
+        }
+
+        /**
+         * @param startNanos the time the node's wait for the membership is measured from
+         */
+        void track(final SimulatedNode node, final long startNanos) {
+            final int slot = tracked++;
+            rounds.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (expected.equals(node.round())) {
+                        times[slot] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                        done.countDown();
+                    } else if (System.nanoTime() > deadline) {
+                        done.countDown();
+                    } else {
+                        rounds.schedule(this, pollMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return the milliseconds each node took from its start, <tt>-1</tt> for the nodes that did not converge
+         * within <tt>timeout_s</tt>
+         */
+        long[] await() throws InterruptedException {
+            done.await();
+            return times;
+        }
+    }
+
+    /**
+     * A node reduced to its discovery: a provider and its etcd service, with a transport that only reports an address.
+     */
+    private static class SimulatedNode {
+
+        final EtcdService etcdService;
+
+        final EtcdUnicastHostsProvider provider;
+
+
+        SimulatedNode(int index, Settings settings, ThreadPool threadPool, NodeEnvironment nodeEnvironment) {
+            TransportService transportService = new TransportService(new AddressOnlyTransport(settings, threadPool, BASE_PORT + index),
+                    threadPool);
+            etcdService = new EtcdService(settings, threadPool);
+            etcdService.start();
+            provider = new EtcdUnicastHostsProvider(settings, transportService, null, threadPool, etcdService, nodeEnvironment);
+        }
+
+        /**
+         * @return the ports of the nodes found by a discovery round
+         */
+        Set<String> round() {
+            Set<String> ports = new HashSet<>();
+            for (DiscoveryNode node : provider.buildDynamicNodes()) {
+                if (node.address() instanceof InetSocketTransportAddress) {
+                    ports.add(String.valueOf(((InetSocketTransportAddress) node.address()).address().getPort()));
+                }
+            }
+            return ports;
+        }
+
+        void stop() {
+            etcdService.stop();
+            etcdService.close();
+        }
+    }
+}
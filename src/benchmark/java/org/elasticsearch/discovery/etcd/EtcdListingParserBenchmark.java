@@ -0,0 +1,60 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a recursive listing: the streaming parser used by <tt>listMembers</tt>, and the data binding of
+ * {@link EtcdResult} used for the other v2 answers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EtcdListingParserBenchmark {
+
+    private static final ObjectReader RESULT_READER = new ObjectMapper().reader(EtcdResult.class);
+
+    @Param({"10", "1000", "10000"})
+    public int instances;
+
+    @Param({"flat", "transport"})
+    public String layout;
+
+    private byte[] listing;
+
+    private EtcdListingParser parser;
+
+    @Setup
+    public void setUp() throws IOException {
+        listing = EtcdListings.generate(instances, "transport".equals(layout));
+        parser = new EtcdListingParser("transport");
+    }
+
+    @Benchmark
+    public EtcdListing streamingParser() throws IOException {
+        return parser.parse(new ByteArrayInputStream(listing));
+    }
+
+    @Benchmark
+    public EtcdResult resultBinding() throws IOException {
+        return RESULT_READER.readValue(listing);
+    }
+}
@@ -0,0 +1,72 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Synthetic recursive etcd v2 listings of the service key, as returned by <tt>GET /v2/keys/&lt;key&gt;?recursive=true</tt>.
+ */
+public final class EtcdListings {
+
+    public static final String SERVICE_KEY = "/services/elasticsearch";
+
+    private EtcdListings() {
+    }
+
+    /**
+     * @param dirLayout <tt>true</tt> for <tt>&lt;id&gt;/transport</tt> instance directories, also holding an
+     *                  <tt>http</tt> key, <tt>false</tt> for flat <tt>&lt;id&gt;</tt> values
+     */
+    public static byte[] generate(int instances, boolean dirLayout) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator json = new JsonFactory().createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("action", "get");
+            json.writeObjectFieldStart("node");
+            json.writeStringField("key", SERVICE_KEY);
+            json.writeBooleanField("dir", true);
+            json.writeArrayFieldStart("nodes");
+            for (int i = 0; i < instances; i++) {
+                String key = SERVICE_KEY + "/" + (1000000 + i);
+                if (dirLayout) {
+                    json.writeStartObject();
+                    json.writeStringField("key", key);
+                    json.writeBooleanField("dir", true);
+                    json.writeArrayFieldStart("nodes");
+                    writeValue(json, key + "/http", address(i, 9200), i);
+                    writeValue(json, key + "/transport", address(i, 9300), i);
+                    json.writeEndArray();
+                    json.writeNumberField("modifiedIndex", 10 + i);
+                    json.writeNumberField("createdIndex", 10 + i);
+                    json.writeEndObject();
+                } else {
+                    writeValue(json, key, address(i, 9300), i);
+                }
+            }
+            json.writeEndArray();
+            json.writeNumberField("modifiedIndex", 2);
+            json.writeNumberField("createdIndex", 2);
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeValue(JsonGenerator json, String key, String value, int i) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("key", key);
+        json.writeStringField("value", value);
+        json.writeStringField("expiration", "2016-01-01T00:00:06.000000000Z");
+        json.writeNumberField("ttl", 6);
+        json.writeNumberField("modifiedIndex", 10 + i);
+        json.writeNumberField("createdIndex", 10 + i);
+        json.writeEndObject();
+    }
+
+    private static String address(int i, int port) {
+        return "10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff) + ":" + port;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.discovery.etcd.EtcdMasterHint;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Publishes the local node as the master hint while it is the elected master, so that joining nodes ping it first.
+ * The hint is written from the generic thread pool when the node is elected, then kept alive every
+ * <tt>cloud.etcd.heartbeat.interval</tt> with the lifetime of a registration. A new master overwrites it, a stopped
+ * one lets it expire.
+ */
+public class EtcdMasterPublisher extends AbstractLifecycleComponent<EtcdMasterPublisher> implements ClusterStateListener {
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    private final EtcdService etcdService;
+
+    private final boolean enabled;
+
+    private final String key;
+
+    private final TimeValue interval;
+
+    /** the publication of the current mastership, <tt>null</tt> while the local node is not the master */
+    private Publication publication;
+
+    @Inject
+    public EtcdMasterPublisher(Settings settings, ClusterService clusterService, ThreadPool threadPool, EtcdService etcdService) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.etcdService = etcdService;
+        this.enabled = "etcd".equals(settings.get("discovery.type")) && settings.getAsBoolean("cloud.etcd.master_hint.enabled", true);
+        this.key = settings.get("cloud.etcd.master_hint.key", EtcdMasterHint.KEY);
+        this.interval = settings.getAsTime("cloud.etcd.heartbeat.interval", TimeValue.timeValueMillis(etcdService.interval() * 1000 / 2));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (enabled) {
+            clusterService.add(this);
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (enabled) {
+            clusterService.remove(this);
+        }
+        synchronized (this) {
+            if (publication != null) {
+                publication.cancelled = true;
+                publication = null;
+            }
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    @Override
+    public synchronized void clusterChanged(ClusterChangedEvent event) {
+        if (!event.localNodeMaster()) {
+            if (publication != null) {
+                publication.cancelled = true;
+                publication = null;
+            }
+            return;
+        }
+        EtcdMasterHint hint = EtcdMasterHint.of(event.state().nodes().localNode());
+        if (hint == null || (publication != null && publication.value.equals(hint.toString()))) {
+            return;
+        }
+        if (publication != null) {
+            publication.cancelled = true;
+        }
+        logger.debug("elected master, publishing [{}] to etcd key [{}]", hint, key);
+        publication = new Publication(hint.toString());
+        threadPool.generic().execute(publication);
+    }
+
+    private class Publication implements Runnable {
+
+        final String value;
+
+        volatile boolean cancelled;
+
+        Publication(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                if (!etcdService.store().publish(key, value)) {
+                    logger.debug("etcd did not accept the master hint, publishing it again in {}", interval);
+                }
+            } catch (Exception e) {
+                logger.debug("failed to publish the master hint: {}", e.getMessage());
+            }
+            if (!cancelled) {
+                threadPool.schedule(interval, ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+}
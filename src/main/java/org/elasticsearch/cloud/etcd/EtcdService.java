@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.discovery.etcd.EtcdClient;
+import org.elasticsearch.discovery.etcd.EtcdClusterDirectory;
+import org.elasticsearch.discovery.etcd.EtcdStats;
+import org.elasticsearch.discovery.etcd.EtcdStore;
+import org.elasticsearch.discovery.etcd.EtcdV3Client;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Owns the node wide {@link EtcdStore} so that every etcd call shares the same pool of keep-alive connections.
+ * <tt>cloud.etcd.api</tt> selects the v2 keys API ({@link EtcdClient}, the default) or the v3 gateway ({@link EtcdV3Client}).
+ */
+public class EtcdService extends AbstractLifecycleComponent<EtcdService> {
+
+    private final ThreadPool threadPool;
+
+    private final String etcdHosts;
+
+    private final String api;
+
+    /** recorded into by every store of the node, so that its stats cover the cluster directory too */
+    private final EtcdStats stats = new EtcdStats();
+
+    private final EtcdStore store;
+
+    private final int etcdInterval;
+
+    private final TimeValue idleTimeout;
+
+    private volatile ScheduledFuture<?> evictionFuture;
+
+    @Inject
+    public EtcdService(Settings settings, ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+        String etcdHosts;
+        if (System.getenv().containsKey("ETCDCTL_PEERS")) {
+            etcdHosts = System.getenv().get("ETCDCTL_PEERS");
+        } else {
+            etcdHosts = settings.get("cloud.etcd.host", "127.0.0.1:4001");
+        }
+        this.etcdHosts = etcdHosts;
+        String etcdKey = EtcdClusterDirectory.serviceKey(settings);
+        int interval = 5;
+        try {
+            interval = Integer.parseInt(settings.get("cloud.etcd.interval", "5"));
+        } catch (Throwable ignored) {}
+        this.etcdInterval = interval;
+        this.idleTimeout = settings.getAsTime("cloud.etcd.pool.idle_timeout", TimeValue.timeValueSeconds(30));
+        this.api = settings.get("cloud.etcd.api", "v2");
+        logger.debug("using etcd {} [{}] with key [{}], idle_timeout [{}]", api, etcdHosts, etcdKey, idleTimeout);
+        this.store = newStore(etcdKey);
+    }
+
+    /**
+     * @return a new store under the given key, with its own pool of connections to the etcd members of this node,
+     * recording into the stats of the node wide store
+     */
+    public EtcdStore newStore(String etcdKey) {
+        if ("v3".equals(api)) {
+            return new EtcdV3Client(logger, etcdHosts, etcdKey, etcdInterval, settings, stats);
+        } else if ("v2".equals(api)) {
+            return new EtcdClient(logger, etcdHosts, etcdKey, etcdInterval, settings, stats);
+        }
+        throw new ElasticsearchIllegalArgumentException("unsupported cloud.etcd.api [" + api + "], expected v2 or v3");
+    }
+
+    /**
+     * @return the API version and the members of etcd, identifying the etcd cluster this node talks to
+     */
+    public String etcdId() {
+        return api + "|" + etcdHosts;
+    }
+
+    public EtcdStore store() {
+        return store;
+    }
+
+    public int interval() {
+        return etcdInterval;
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        evictionFuture = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                store.evictIdleConnections(idleTimeout);
+            }
+        }, idleTimeout);
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (evictionFuture != null) {
+            evictionFuture.cancel(false);
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        store.close();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.discovery.etcd.EtcdEndpoint;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Returns the etcd discovery stats of the node answering the request: <tt>GET /_cloud/etcd/stats</tt>.
+ */
+public class RestEtcdStatsAction extends BaseRestHandler {
+
+    private final EtcdService etcdService;
+
+    @Inject
+    public RestEtcdStatsAction(Settings settings, RestController controller, Client client, EtcdService etcdService) {
+        super(settings, controller, client);
+        this.etcdService = etcdService;
+        controller.registerHandler(RestRequest.Method.GET, "/_cloud/etcd/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.field("endpoints");
+        builder.startArray();
+        for (EtcdEndpoint endpoint : etcdService.store().endpoints()) {
+            builder.value(endpoint.toString());
+        }
+        builder.endArray();
+        etcdService.store().stats().toXContent(builder, request);
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
@@ -0,0 +1,553 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP side shared by the etcd API versions: one or more cluster members (a comma separated list, as in
+ * <tt>ETCDCTL_PEERS</tt>) reached through a single pool of keep-alive connections. Requests go to the fastest available
+ * member first and fail over to the others. A member that fails is skipped with an exponential backoff, and a read
+ * that is slower than the hedge delay is also sent to the next member.
+ */
+public abstract class AbstractEtcdClient implements EtcdStore {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+    public static final TimeValue DEFAULT_WATCH_TIMEOUT = TimeValue.timeValueSeconds(60);
+
+    public static final TimeValue DEFAULT_CONNECT_TIMEOUT = TimeValue.timeValueSeconds(2);
+
+    public static final TimeValue DEFAULT_READ_TIMEOUT = TimeValue.timeValueSeconds(10);
+
+    // the wait for a pooled connection, the name of ClientPNames.CONN_MANAGER_TIMEOUT which httpclient 4.1 lacks
+    private static final String CONN_MANAGER_TIMEOUT = "http.conn-manager.timeout";
+
+    protected final ESLogger logger;
+    protected final String etcdKey;
+    protected final int etcdInterval;
+    protected final TimeValue watchTimeout;
+    protected final TimeValue connectTimeout;
+    protected final EtcdStats stats;
+    private final ThreadSafeClientConnManager connectionManager;
+    private final ApacheHttpClient4 client;
+    private final List<EtcdEndpoint> endpoints;
+    private final TimeValue hedgeDelay;
+    private final EtcdSingleFlight<EtcdListing> listings;
+
+    private final EtcdRateLimiter reads;
+
+    private final EtcdRateLimiter writes;
+
+    /** the last result of each limited request, served while its budget is exhausted */
+    private final ConcurrentMap<String, Object> lastResults = ConcurrentCollections.newConcurrentMap();
+    private final ExecutorService hedgeExecutor;
+
+    /** the http requests of the reads in flight, aborted by {@link #abortReads()} */
+    private final Set<HttpUriRequest> readsInFlight = ConcurrentCollections.newConcurrentSet();
+
+    /** the http requests sent by the read running on the current thread, <tt>null</tt> outside of a read */
+    private final ThreadLocal<List<HttpUriRequest>> readRequests = new ThreadLocal<>();
+
+    protected AbstractEtcdClient(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings) {
+        this(logger, etcdHosts, etcdKey, etcdInterval, settings, new EtcdStats());
+    }
+
+    /**
+     * @param stats the counters to record into, shared by the stores of a node so that its stats cover all of them
+     */
+    protected AbstractEtcdClient(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings,
+                                 EtcdStats stats) {
+        this.logger = logger;
+        this.stats = stats;
+        this.etcdKey = etcdKey;
+        this.etcdInterval = etcdInterval;
+        String[] hosts = Strings.tokenizeToStringArray(etcdHosts, ",");
+        int maxConnections = settings.getAsInt("cloud.etcd.pool.max_connections", DEFAULT_MAX_CONNECTIONS);
+        this.watchTimeout = settings.getAsTime("cloud.etcd.watch.timeout", DEFAULT_WATCH_TIMEOUT);
+        this.connectTimeout = settings.getAsTime("cloud.etcd.connect_timeout", DEFAULT_CONNECT_TIMEOUT);
+        TimeValue readTimeout = settings.getAsTime("cloud.etcd.read_timeout", DEFAULT_READ_TIMEOUT);
+        boolean gzip = settings.getAsBoolean("cloud.etcd.gzip", true);
+        TimeValue initialBackoff = settings.getAsTime("cloud.etcd.failover.backoff", TimeValue.timeValueSeconds(1));
+        TimeValue maxBackoff = settings.getAsTime("cloud.etcd.failover.max_backoff", TimeValue.timeValueSeconds(60));
+        this.hedgeDelay = settings.getAsTime("cloud.etcd.read.hedge_delay", TimeValue.timeValueMillis(500));
+        this.reads = EtcdRateLimiter.reads(settings);
+        this.writes = EtcdRateLimiter.writes(settings);
+        this.listings = new EtcdSingleFlight<>(settings.getAsTime("cloud.etcd.read.freshness", TimeValue.timeValueMillis(250)), stats);
+        // every etcd member is its own route, the pool size applies to each of them
+        this.connectionManager = new ThreadSafeClientConnManager();
+        this.connectionManager.setMaxTotal(maxConnections * Math.max(1, hosts.length));
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        DefaultApacheHttpClient4Config config = new DefaultApacheHttpClient4Config();
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connectionManager);
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_DISABLE_COOKIES, true);
+        // a hung member must not block the caller: bound the connection, every read, and the wait for a pooled connection.
+        // The apache client of jersey ignores the connect timeout property, so both go to the parameters of the client,
+        // and a request with its own read timeout, such as a watch, overrides the socket timeout
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_READ_TIMEOUT, (int) readTimeout.millis());
+        BasicHttpParams httpParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, (int) connectTimeout.millis());
+        HttpConnectionParams.setSoTimeout(httpParams, (int) readTimeout.millis());
+        httpParams.setLongParameter(CONN_MANAGER_TIMEOUT, connectTimeout.millis());
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_HTTP_PARAMS, httpParams);
+        this.client = ApacheHttpClient4.create(config);
+        HttpClient httpClient = httpClient();
+        if (httpClient instanceof AbstractHttpClient) {
+            // jersey does not expose the requests it sends, they are caught on their way out to be abortable
+            ((AbstractHttpClient) httpClient).addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) {
+                    List<HttpUriRequest> sent = readRequests.get();
+                    if (sent != null && request instanceof RequestWrapper && ((RequestWrapper) request).getOriginal() instanceof HttpUriRequest) {
+                        HttpUriRequest original = (HttpUriRequest) ((RequestWrapper) request).getOriginal();
+                        sent.add(original);
+                        readsInFlight.add(original);
+                    }
+                }
+            });
+        }
+        List<EtcdEndpoint> endpoints = new ArrayList<>();
+        for (String host : hosts) {
+            endpoints.add(new EtcdEndpoint(host, client, gzip, watchTimeout, initialBackoff, maxBackoff));
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no etcd host configured");
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.hedgeExecutor = EsExecutors.newCached(30, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory(settings, "etcd_client"));
+    }
+
+    @Override
+    public String getEtcdKey() {
+        return etcdKey;
+    }
+
+    @Override
+    public List<EtcdEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public EtcdStats stats() {
+        return stats;
+    }
+
+    @Override
+    public EtcdListing listMembers(String etcdTransportkey) {
+        return listMembers(null, etcdTransportkey, 1);
+    }
+
+    /**
+     * Concurrent callers reading the same key share a single request, and a listing fetched within
+     * <tt>cloud.etcd.read.freshness</tt> is served again. The returned listing is shared and must not be modified.
+     */
+    @Override
+    public EtcdListing listMembers(final String subKey, final String etcdTransportkey, final int depth) {
+        return listings.execute(subKey + "|" + etcdTransportkey + "|" + depth, new Callable<EtcdListing>() {
+            @Override
+            public EtcdListing call() throws Exception {
+                EtcdListing last = (EtcdListing) throttled("list|" + subKey + "|" + etcdTransportkey + "|" + depth);
+                return last != null ? last : remember("list|" + subKey + "|" + etcdTransportkey + "|" + depth,
+                        doListMembers(subKey, etcdTransportkey, depth, false));
+            }
+        });
+    }
+
+    @Override
+    public EtcdListing listClusters(final String etcdTransportkey) {
+        return listings.execute("*|" + etcdTransportkey + "|2", new Callable<EtcdListing>() {
+            @Override
+            public EtcdListing call() throws Exception {
+                EtcdListing last = (EtcdListing) throttled("clusters|" + etcdTransportkey);
+                return last != null ? last : remember("clusters|" + etcdTransportkey, doListMembers(null, etcdTransportkey, 2, true));
+            }
+        });
+    }
+
+    /**
+     * The registration is never throttled: the heartbeat already paces it, and a refresh held back by a busy node could
+     * let its registration expire.
+     */
+    @Override
+    public boolean register(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        return doRegister(instanceKeys, etcdTransportkey, value, attributes);
+    }
+
+    protected abstract boolean doRegister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes);
+
+    /**
+     * A throttled publication is not sent and answers <tt>false</tt>, the value has not been written.
+     */
+    @Override
+    public boolean publish(String key, String value) {
+        if (!writes.tryAcquire()) {
+            stats.onThrottled(true);
+            return false;
+        }
+        return doPublish(key, value);
+    }
+
+    protected abstract boolean doPublish(String key, String value);
+
+    @Override
+    public String get(String key) {
+        String last = (String) throttled("get|" + key);
+        return last != null ? last : remember("get|" + key, doGet(key));
+    }
+
+    protected abstract String doGet(String key);
+
+    /**
+     * Takes a read token for a request. Publications take a write token, the registration, the watch and the
+     * deregistration are never limited.
+     *
+     * @return the last result of the request if the read budget is exhausted, <tt>null</tt> if it should be sent. A
+     * request without a result yet is always sent.
+     */
+    private Object throttled(String request) {
+        if (reads.tryAcquire()) {
+            return null;
+        }
+        Object last = lastResults.get(request);
+        if (last != null) {
+            stats.onThrottled(false);
+        }
+        return last;
+    }
+
+    private <T> T remember(String request, T result) {
+        if (result != null) {
+            lastResults.put(request, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param qualified whether the instance ids keep the keys of the levels above the instances,
+     *                  <tt>&lt;cluster&gt;/&lt;instance&gt;</tt>, rather than only the last one
+     */
+    protected abstract EtcdListing doListMembers(String subKey, String etcdTransportkey, int depth, boolean qualified);
+
+    /**
+     * A 5xx means this member cannot serve the request right now, so it is treated like a connection failure.
+     */
+    protected void checkAvailable(ClientResponse response) throws IOException {
+        if (response.getStatus() >= 500) {
+            throw new UnavailableException(response.getStatus(), String.format("etcd returned [%d]: %s", response.getStatus(), response.getClientResponseStatus()));
+        }
+    }
+
+    /**
+     * Sends the request to the available endpoints, fastest first, until one of them answers.
+     *
+     * @param operation the kind of request, a watch has a latency that says nothing about the endpoint and a read
+     *                  timeout that is not a failure
+     */
+    protected <T> T execute(EtcdStats.Operation operation, EtcdRequest<T> request) {
+        boolean longPoll = operation == EtcdStats.Operation.WATCH;
+        Exception failure = null;
+        long started = System.nanoTime();
+        for (EtcdEndpoint endpoint : orderedEndpoints()) {
+            long start = System.nanoTime();
+            try {
+                T result = request.execute(endpoint);
+                if (!longPoll) {
+                    endpoint.onSuccess(System.nanoTime() - start);
+                }
+                stats.onSuccess(operation, System.nanoTime() - started);
+                return result;
+            } catch (Exception e) {
+                if (longPoll && isTimeout(e)) {
+                    throw unchecked(e);
+                }
+                endpoint.onFailure();
+                onError(e);
+                logger.debug("etcd endpoint [{}] failed: {}", endpoint, e.getMessage());
+                failure = e;
+            }
+        }
+        throw unchecked(failure);
+    }
+
+    /**
+     * Like {@link #execute(EtcdStats.Operation, EtcdRequest)} for a query, but when the current endpoint has not answered within the hedge
+     * delay the request is also sent to the next one, and the first successful answer wins.
+     */
+    protected <T> T read(EtcdRequest<T> request) {
+        request = abortable(request);
+        List<EtcdEndpoint> ordered = orderedEndpoints();
+        if (ordered.size() < 2 || hedgeDelay.millis() <= 0) {
+            return execute(EtcdStats.Operation.QUERY, request);
+        }
+        long started = System.nanoTime();
+        CompletionService<T> completion = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<T>> attempts = new ArrayList<>();
+        Exception failure = null;
+        int next = 0;
+        try {
+            attempts.add(completion.submit(attempt(request, ordered.get(next++))));
+            int pending = 1;
+            while (pending > 0) {
+                Future<T> done;
+                if (next < ordered.size()) {
+                    done = completion.poll(hedgeDelay.millis(), TimeUnit.MILLISECONDS);
+                } else {
+                    done = completion.take();
+                }
+                if (done == null) {
+                    logger.trace("etcd read slower than [{}], hedging on [{}]", hedgeDelay, ordered.get(next));
+                    attempts.add(completion.submit(attempt(request, ordered.get(next++))));
+                    pending++;
+                    continue;
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    stats.onSuccess(EtcdStats.Operation.QUERY, System.nanoTime() - started);
+                    return result;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    if (next < ordered.size()) {
+                        attempts.add(completion.submit(attempt(request, ordered.get(next++))));
+                        pending++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            // the slower attempts still release their connection when they complete
+            for (Future<T> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+        throw unchecked(failure);
+    }
+
+    /**
+     * Aborts the http requests of every read in flight: their connections are closed and their callers fail at once.
+     * Requests sent after this call are not affected.
+     */
+    @Override
+    public void abortReads() {
+        for (HttpUriRequest request : readsInFlight) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Records the http requests sent while the given one runs, so that {@link #abortReads()} can reach them.
+     */
+    private <T> EtcdRequest<T> abortable(final EtcdRequest<T> request) {
+        return new EtcdRequest<T>() {
+            @Override
+            public T execute(EtcdEndpoint endpoint) throws IOException {
+                List<HttpUriRequest> sent = new ArrayList<>(1);
+                readRequests.set(sent);
+                try {
+                    return request.execute(endpoint);
+                } finally {
+                    readRequests.remove();
+                    readsInFlight.removeAll(sent);
+                }
+            }
+        };
+    }
+
+    private <T> Callable<T> attempt(final EtcdRequest<T> request, final EtcdEndpoint endpoint) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    T result = request.execute(endpoint);
+                    endpoint.onSuccess(System.nanoTime() - start);
+                    return result;
+                } catch (Exception e) {
+                    endpoint.onFailure();
+                    onError(e);
+                    logger.debug("etcd endpoint [{}] failed: {}", endpoint, e.getMessage());
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the available endpoints by increasing latency, followed by the skipped ones by increasing backoff
+     */
+    private List<EtcdEndpoint> orderedEndpoints() {
+        if (endpoints.size() == 1) {
+            return endpoints;
+        }
+        final long now = System.currentTimeMillis();
+        List<EtcdEndpoint> ordered = new ArrayList<>(endpoints);
+        Collections.sort(ordered, new Comparator<EtcdEndpoint>() {
+            @Override
+            public int compare(EtcdEndpoint o1, EtcdEndpoint o2) {
+                boolean available1 = o1.isAvailable(now);
+                boolean available2 = o2.isAvailable(now);
+                if (available1 != available2) {
+                    return available1 ? -1 : 1;
+                }
+                if (available1) {
+                    return Long.compare(o1.latencyNanos(), o2.latencyNanos());
+                }
+                return Long.compare(o1.retryAfterMillis(), o2.retryAfterMillis());
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Closes the pooled connections that have been idle for longer than the given time.
+     */
+    @Override
+    public void evictIdleConnections(TimeValue idleTimeout) {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout.millis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        hedgeExecutor.shutdownNow();
+        client.destroy();
+        connectionManager.shutdown();
+    }
+
+    private void onError(Exception e) {
+        stats.onError(e instanceof UnavailableException ? ((UnavailableException) e).status : EtcdStats.NO_STATUS);
+    }
+
+    /**
+     * @return the entity of the response, counting the bytes read from it
+     */
+    protected InputStream entity(ClientResponse response) {
+        return countBytes(response.getEntityInputStream());
+    }
+
+    protected InputStream countBytes(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    stats.onBytesRead(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    stats.onBytesRead(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @return the pooled http client under jersey, for requests that must be aborted from another thread
+     */
+    protected HttpClient httpClient() {
+        return client.getClientHandler().getHttpClient();
+    }
+
+    /**
+     * Fully consumes and closes the entity so the connection goes back to the pool.
+     */
+    protected void release(ClientResponse response) {
+        InputStream responseInputStream = response.getEntityInputStream();
+        try {
+            if (responseInputStream != null) {
+                byte[] buffer = new byte[1024];
+                while (responseInputStream.read(buffer) != -1) {
+                    // drain whatever the caller did not read
+                }
+            }
+        } catch (Throwable ignored) {
+        } finally {
+            try {
+                response.close();
+            } catch (Throwable ignored) {}
+        }
+    }
+
+    protected static RuntimeException unchecked(Exception e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new ElasticsearchException(e.getMessage(), e);
+    }
+
+    static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected String evaluateTimeToLive() {
+        return new BigDecimal(etcdInterval*120).divide(new BigDecimal(100), 0, RoundingMode.UP).toString();
+    }
+
+    /**
+     * A 5xx answer, the member should not be asked again for a while.
+     */
+    protected static class UnavailableException extends IOException {
+        final int status;
+
+        public UnavailableException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    protected interface EtcdRequest<T> {
+        T execute(EtcdEndpoint endpoint) throws IOException;
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves the transport addresses registered in etcd. Results are cached by raw value, successful lookups for
+ * <tt>cloud.etcd.resolve.ttl</tt> and failed or timed out ones for <tt>cloud.etcd.resolve.negative_ttl</tt>, and
+ * cache misses are resolved in parallel on a bounded pool, each within <tt>cloud.etcd.resolve.timeout</tt>.
+ */
+public class EtcdAddressResolver {
+
+    private final ESLogger logger;
+
+    private final TransportService transportService;
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    private final long timeoutMillis;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<String, CachedAddresses> cache = ConcurrentCollections.newConcurrentMap();
+
+    public EtcdAddressResolver(ESLogger logger, Settings settings, TransportService transportService) {
+        this.logger = logger;
+        this.transportService = transportService;
+        this.ttlMillis = settings.getAsTime("cloud.etcd.resolve.ttl", TimeValue.timeValueSeconds(60)).millis();
+        this.negativeTtlMillis = settings.getAsTime("cloud.etcd.resolve.negative_ttl", TimeValue.timeValueSeconds(5)).millis();
+        this.timeoutMillis = settings.getAsTime("cloud.etcd.resolve.timeout", TimeValue.timeValueSeconds(5)).millis();
+        int threads = settings.getAsInt("cloud.etcd.resolve.threads", 4);
+        this.executor = EsExecutors.newScaling(1, threads, 60, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory(settings, "etcd_resolver"));
+    }
+
+    /**
+     * @return the addresses of each value that could be resolved, in the order of the given values
+     */
+    public Map<String, TransportAddress[]> resolve(Collection<String> values) {
+        long now = System.currentTimeMillis();
+        Map<String, TransportAddress[]> resolved = new LinkedHashMap<>();
+        Map<String, Future<TransportAddress[]>> lookups = new LinkedHashMap<>();
+        for (final String value : new LinkedHashSet<>(values)) {
+            CachedAddresses cached = cache.get(value);
+            if (cached != null && cached.expiresAt > now) {
+                if (cached.addresses != null) {
+                    resolved.put(value, cached.addresses);
+                }
+                continue;
+            }
+            lookups.put(value, executor.submit(new Callable<TransportAddress[]>() {
+                @Override
+                public TransportAddress[] call() throws Exception {
+                    return lookup(value);
+                }
+            }));
+            // keeps the order of the values, the lookup fills it in below
+            resolved.put(value, null);
+        }
+        long deadline = now + timeoutMillis;
+        for (Map.Entry<String, Future<TransportAddress[]>> lookup : lookups.entrySet()) {
+            String value = lookup.getKey();
+            TransportAddress[] addresses = null;
+            try {
+                addresses = lookup.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                cache.put(value, new CachedAddresses(addresses, System.currentTimeMillis() + ttlMillis));
+            } catch (TimeoutException e) {
+                lookup.getValue().cancel(true);
+                addresses = stale(value);
+                // a hung resolver must not hold up every round until it answers
+                cache.put(value, new CachedAddresses(addresses, System.currentTimeMillis() + negativeTtlMillis));
+                logger.warn("resolving [{}] timed out after {}ms", value, timeoutMillis);
+            } catch (ExecutionException e) {
+                addresses = stale(value);
+                cache.put(value, new CachedAddresses(addresses, System.currentTimeMillis() + negativeTtlMillis));
+                logger.warn("failed to resolve [{}]: {}", value, e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            resolved.put(value, addresses);
+        }
+        resolved.values().removeAll(Collections.singleton(null));
+        return resolved;
+    }
+
+    /**
+     * Drops the cached values not registered anymore.
+     */
+    public void retain(Collection<String> values) {
+        cache.keySet().retainAll(values);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    protected TransportAddress[] lookup(String value) throws Exception {
+        return transportService.addressesFromString(value);
+    }
+
+    /**
+     * @return the addresses of the last successful lookup, served while the value cannot be resolved
+     */
+    private TransportAddress[] stale(String value) {
+        CachedAddresses cached = cache.get(value);
+        return cached == null ? null : cached.addresses;
+    }
+
+    private static class CachedAddresses {
+        final TransportAddress[] addresses;
+        final long expiresAt;
+
+        CachedAddresses(TransportAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
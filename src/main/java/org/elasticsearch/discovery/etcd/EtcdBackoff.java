@@ -0,0 +1,66 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Random;
+
+/**
+ * Spreads the periodic etcd requests of a node so that nodes restarted together do not hit etcd in lockstep. Every
+ * delay is randomized by <tt>cloud.etcd.backoff.jitter</tt> around its nominal value, and grows by
+ * <tt>cloud.etcd.backoff.multiplier</tt> after each consecutive failure up to <tt>cloud.etcd.backoff.max</tt>. The
+ * first success brings it back to the base interval.
+ */
+public class EtcdBackoff {
+
+    private static final int MAX_FAILURES = 30;
+
+    private final double jitter;
+
+    private final double multiplier;
+
+    private final long maxMillis;
+
+    private final Random random;
+
+    private volatile int failures;
+
+    public EtcdBackoff(Settings settings) {
+        this(settings, new Random());
+    }
+
+    public EtcdBackoff(Settings settings, Random random) {
+        this.jitter = Math.min(1.0, Math.max(0.0, settings.getAsDouble("cloud.etcd.backoff.jitter", 0.25)));
+        this.multiplier = Math.max(1.0, settings.getAsDouble("cloud.etcd.backoff.multiplier", 2.0));
+        this.maxMillis = settings.getAsTime("cloud.etcd.backoff.max", TimeValue.timeValueSeconds(60)).millis();
+        this.random = random;
+    }
+
+    /**
+     * @return the base delay grown by the consecutive failures, capped to the max backoff but never below the base,
+     * randomized by the jitter
+     */
+    public long delayMillis(long baseMillis) {
+        double delay = baseMillis * Math.pow(multiplier, failures);
+        delay = Math.min(delay, Math.max(baseMillis, maxMillis));
+        return Math.max(0, Math.round(delay * (1.0 + jitter * (2 * random.nextDouble() - 1))));
+    }
+
+    public void onSuccess() {
+        failures = 0;
+    }
+
+    public void onFailure() {
+        int failures = this.failures;
+        if (failures < MAX_FAILURES) {
+            this.failures = failures + 1;
+        }
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    public int failures() {
+        return failures;
+    }
+}
@@ -3,91 +3,334 @@ package org.elasticsearch.discovery.etcd;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.sun.jersey.api.client.Client;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentMap;
 
-public class EtcdClient {
-    private final ESLogger logger;
-    private final String etcdHost;
-    private final String etcdKey;
-    private final int etcdInterval;
+/**
+ * Stores the registrations with the etcd v2 keys API, using either an <tt>&lt;instance&gt;</tt> value or an
+ * <tt>&lt;instance&gt;/transport</tt> value in an instance directory.
+ */
+public class EtcdClient extends AbstractEtcdClient {
+    /** etcd v2 error code for a missing key */
+    public static final int KEY_NOT_FOUND = 100;
 
-    public EtcdClient(ESLogger logger, String etcdHost, String etcdKey, int etcdInterval) {
-        this.logger = logger;
-        this.etcdHost = etcdHost;
-        this.etcdKey = etcdKey;
-        this.etcdInterval = etcdInterval;
+    /** etcd v2 error code for a value written on a directory */
+    public static final int NOT_FILE = 102;
+
+    /** etcd v2 error code for a key written under a value */
+    public static final int NOT_DIR = 104;
+
+    private static final ObjectReader RESULT_READER = new ObjectMapper().reader(EtcdResult.class);
+
+    /** whether each instance key is a directory holding the transport key, missing until checked */
+    private final ConcurrentMap<String, Boolean> dirLayouts = ConcurrentCollections.newConcurrentMap();
+
+    /** the value last written to each registration key */
+    private final ConcurrentMap<String, String> written = ConcurrentCollections.newConcurrentMap();
+
+    /** cleared once etcd turns out to ignore <tt>refresh</tt>, as etcd before 2.3 does */
+    private volatile boolean ttlRefresh;
+
+    public EtcdClient(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval) {
+        this(logger, etcdHosts, etcdKey, etcdInterval, ImmutableSettings.EMPTY);
     }
 
-    public String updateEtcdkeys(String key, String value) {
-        WebResource service = Client.create(new DefaultClientConfig()).resource(String.format("http://%s/v2/keys", etcdHost));
-        ClientResponse response = service.path(etcdKey + "/" + key).queryParam("value", value).queryParam("ttl", evaluateTimeToLive()).put(ClientResponse.class);
-        ClientResponse.Status status = response.getClientResponseStatus();
-        InputStream responseInputStream = response.getEntityInputStream();
-        String content = "";
-        if (status != ClientResponse.Status.OK && status != ClientResponse.Status.CREATED && status != ClientResponse.Status.NOT_FOUND) {
-            logger.error(String.format("Error when fetching etcd[%d]: %s", status.getStatusCode(), status.toString()));
-        } else {
-            try {
-                Scanner s = new Scanner(responseInputStream).useDelimiter("\\A");
-                if (s.hasNext()) {
-                    content = s.next();
-                }
-            } finally {
-                try {
-                    responseInputStream.close();
-                } catch (Throwable ignored){}
+    public EtcdClient(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings) {
+        this(logger, etcdHosts, etcdKey, etcdInterval, settings, new EtcdStats());
+    }
+
+    public EtcdClient(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings, EtcdStats stats) {
+        super(logger, etcdHosts, etcdKey, etcdInterval, settings, stats);
+        this.ttlRefresh = settings.getAsBoolean("cloud.etcd.register.ttl_refresh", true);
+    }
+
+    /**
+     * Writes each key in a single request: a key still holding the value last written is only refreshed, with
+     * <tt>refresh=true</tt> and no value so watchers are not woken up, otherwise the value is set. A refresh answered
+     * with another value comes from etcd before 2.3, which blanked the key: the value is written again and refreshes are
+     * no longer sent. The instance key is assumed to hold the address directly until etcd answers with a type error, the
+     * layout is then switched and the write sent again. The attributes are written before the transport address, so a
+     * listing never sees the address of a node without its roles.
+     */
+    @Override
+    protected boolean doRegister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        for (String instanceKey : instanceKeys) {
+            if (!register(instanceKey, etcdTransportkey, value, attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean register(String instanceKey, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        if (attributes != null) {
+            if (!checked(instanceKey + "/" + EtcdNodeAttributes.KEY, write(instanceKey + "/" + EtcdNodeAttributes.KEY, attributes.toString()))) {
+                return false;
+            }
+            return checked(instanceKey + "/" + etcdTransportkey, write(instanceKey + "/" + etcdTransportkey, value));
+        }
+        boolean dirLayout = Boolean.TRUE.equals(dirLayouts.get(instanceKey));
+        String key = dirLayout ? instanceKey + "/" + etcdTransportkey : instanceKey;
+        EtcdResult result = write(key, value);
+        if (result != null && (result.errorCode == NOT_FILE || result.errorCode == NOT_DIR)) {
+            // the instance key is not laid out as assumed, e.g. its directory was created by hand
+            dirLayout = result.errorCode == NOT_FILE;
+            logger.debug("etcd key [{}] is {}a directory, registering again", instanceKey, dirLayout ? "" : "not ");
+            key = dirLayout ? instanceKey + "/" + etcdTransportkey : instanceKey;
+            result = write(key, value);
+        }
+        if (!checked(key, result)) {
+            return false;
+        }
+        dirLayouts.put(instanceKey, dirLayout);
+        return true;
+    }
+
+    private EtcdResult write(String key, String value) {
+        if (ttlRefresh && value.equals(written.get(key))) {
+            EtcdResult result = refreshEtcdKey(key);
+            if (result != null && result.errorCode == 0 && (result.node == null || !value.equals(result.node.value))) {
+                // etcd before 2.3 took the refresh for a write of an empty value
+                logger.warn("etcd does not support TTL refreshes (etcd 2.3 or later), writing the value on every heartbeat");
+                ttlRefresh = false;
+            } else if (result == null || result.errorCode != KEY_NOT_FOUND) {
+                return result;
+            }
+            // the key expired while we could not reach etcd
+        }
+        written.remove(key);
+        EtcdResult result = putEtcdKey(key, value, false);
+        if (result != null && result.errorCode == 0) {
+            written.put(key, value);
+        }
+        return result;
+    }
+
+    private boolean checked(String key, EtcdResult result) {
+        if (result == null) {
+            return false;
+        }
+        if (result.errorCode != 0) {
+            logger.warn(String.format("Error[%d] %s : %s", result.errorCode, result.message, result.cause));
+            written.remove(key);
+            return false;
+        }
+        logger.trace("update etcd: {} {}", result.action, key);
+        return true;
+    }
+
+    @Override
+    protected boolean doPublish(String key, String value) {
+        return checked(key, write(key, value));
+    }
+
+    @Override
+    protected String doGet(String key) {
+        EtcdResult result = queryEtcdKeys(key);
+        if (result == null || result.errorCode != 0 || result.node == null || result.node.dir) {
+            return null;
+        }
+        return result.node.value;
+    }
+
+    /**
+     * Deletes the keys written by {@link #register} with <tt>prevValue</tt>, the transport address first so that
+     * watching peers drop the node on the first event.
+     */
+    @Override
+    public boolean deregister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        boolean deleted = true;
+        written.clear();
+        for (String instanceKey : instanceKeys) {
+            Boolean dirLayout = attributes != null ? Boolean.TRUE : dirLayouts.get(instanceKey);
+            if (dirLayout == null) {
+                // never registered
+                deleted = false;
+                continue;
+            }
+            deleted &= compareAndDelete(dirLayout ? instanceKey + "/" + etcdTransportkey : instanceKey, value);
+            if (attributes != null) {
+                compareAndDelete(instanceKey + "/" + EtcdNodeAttributes.KEY, attributes.toString());
             }
         }
-        return content;
+        return deleted;
+    }
+
+    private boolean compareAndDelete(String key, String value) {
+        EtcdResult result = deleteEtcdKey(key, value);
+        if (result == null) {
+            return false;
+        }
+        if (result.errorCode != 0) {
+            logger.debug("etcd key [{}] not deleted: {}", key, result.message);
+            return false;
+        }
+        logger.trace("update etcd: {} {}", result.action, key);
+        return true;
+    }
+
+    /**
+     * Deletes the key only if it still holds the given value, etcd answers with errorCode 101 otherwise.
+     */
+    public EtcdResult deleteEtcdKey(final String key, final String prevValue) {
+        return execute(EtcdStats.Operation.UPDATE, new EtcdRequest<EtcdResult>() {
+            @Override
+            public EtcdResult execute(EtcdEndpoint endpoint) throws IOException {
+                ClientResponse response = endpoint.resource().path("v2/keys").path(etcdKey + "/" + key).queryParam("prevValue", prevValue).delete(ClientResponse.class);
+                return readResult(response, ClientResponse.Status.OK, ClientResponse.Status.NOT_FOUND, ClientResponse.Status.PRECONDITION_FAILED);
+            }
+        });
+    }
+
+    /**
+     * Writes the value with the registration TTL. With <tt>prevExist</tt> the write only refreshes an existing key
+     * and etcd answers with errorCode 100 if it has expired in the meantime. A type error is answered with errorCode
+     * 102 or 104.
+     */
+    public EtcdResult putEtcdKey(final String key, final String value, final boolean prevExist) {
+        return execute(EtcdStats.Operation.UPDATE, new EtcdRequest<EtcdResult>() {
+            @Override
+            public EtcdResult execute(EtcdEndpoint endpoint) throws IOException {
+                WebResource resource = endpoint.resource().path("v2/keys").path(etcdKey + "/" + key).queryParam("value", value).queryParam("ttl", evaluateTimeToLive());
+                if (prevExist) {
+                    resource = resource.queryParam("prevExist", "true");
+                }
+                ClientResponse response = resource.put(ClientResponse.class);
+                return readResult(response, ClientResponse.Status.OK, ClientResponse.Status.CREATED, ClientResponse.Status.NOT_FOUND,
+                        ClientResponse.Status.FORBIDDEN);
+            }
+        });
+    }
+
+    /**
+     * Only resets the TTL of an existing key (etcd 2.3 and later), without changing its value or notifying watchers.
+     * etcd answers with errorCode 100 if the key has expired.
+     */
+    public EtcdResult refreshEtcdKey(final String key) {
+        return execute(EtcdStats.Operation.UPDATE, new EtcdRequest<EtcdResult>() {
+            @Override
+            public EtcdResult execute(EtcdEndpoint endpoint) throws IOException {
+                ClientResponse response = endpoint.resource().path("v2/keys").path(etcdKey + "/" + key).queryParam("refresh", "true")
+                        .queryParam("prevExist", "true").queryParam("ttl", evaluateTimeToLive()).put(ClientResponse.class);
+                return readResult(response, ClientResponse.Status.OK, ClientResponse.Status.NOT_FOUND, ClientResponse.Status.FORBIDDEN);
+            }
+        });
     }
 
     public EtcdResult queryEtcdKeys(String key) {
-        WebResource service = Client.create(new DefaultClientConfig()).resource(String.format("http://%s/v2/keys", etcdHost));
         String path = etcdKey;
         if(key != null && !"".equals(key)) {
             path += "/" + key;
         }
-        ClientResponse response = service.path(path).queryParam("recursive", "true").get(ClientResponse.class);
-        ClientResponse.Status status = response.getClientResponseStatus();
-        InputStream responseInputStream = response.getEntityInputStream();
+        final String keyPath = path;
+        return read(new EtcdRequest<EtcdResult>() {
+            @Override
+            public EtcdResult execute(EtcdEndpoint endpoint) throws IOException {
+                ClientResponse response = endpoint.resource().path("v2/keys").path(keyPath).queryParam("recursive", "true").get(ClientResponse.class);
+                return readResult(response, ClientResponse.Status.OK, ClientResponse.Status.NOT_FOUND);
+            }
+        });
+    }
+
+    /**
+     * Streams the recursive listing of the key, only keeping the transport address of each instance.
+     */
+    @Override
+    protected EtcdListing doListMembers(String subKey, final String etcdTransportkey, final int depth, final boolean qualified) {
+        final String keyPath = subKey == null ? etcdKey : etcdKey + "/" + subKey;
+        return read(new EtcdRequest<EtcdListing>() {
+            @Override
+            public EtcdListing execute(EtcdEndpoint endpoint) throws IOException {
+                ClientResponse response = endpoint.compressed().path("v2/keys").path(keyPath).queryParam("recursive", "true").get(ClientResponse.class);
+                try {
+                    checkAvailable(response);
+                    ClientResponse.Status status = response.getClientResponseStatus();
+                    if (status != ClientResponse.Status.OK && status != ClientResponse.Status.NOT_FOUND) {
+                        stats.onError(response.getStatus());
+                        logger.error(String.format("Error when fetching etcd[%d]: %s", response.getStatus(), status));
+                        return null;
+                    }
+                    long start = System.nanoTime();
+                    EtcdListing listing = new EtcdListingParser(etcdTransportkey, depth, qualified).parse(entity(response));
+                    stats.onParsed(System.nanoTime() - start);
+                    String etcdIndex = response.getHeaders().getFirst("X-Etcd-Index");
+                    if (etcdIndex != null) {
+                        listing.etcdIndex = Long.parseLong(etcdIndex);
+                    }
+                    return listing;
+                } finally {
+                    release(response);
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<EtcdResult> watch(long waitIndex) {
+        EtcdResult result = watchEtcdKeys(waitIndex);
+        return result == null ? Collections.<EtcdResult>emptyList() : Collections.singletonList(result);
+    }
+
+    /**
+     * Long-polls the whole service key for the first change at or after the given index.
+     * An {@link EtcdResult#errorCode} of 401 means the index has been compacted away.
+     */
+    public EtcdResult watchEtcdKeys(final long waitIndex) {
+        return execute(EtcdStats.Operation.WATCH, new EtcdRequest<EtcdResult>() {
+            @Override
+            public EtcdResult execute(EtcdEndpoint endpoint) throws IOException {
+                ClientResponse response = endpoint.longPoll().path("v2/keys").path(etcdKey)
+                        .queryParam("wait", "true")
+                        .queryParam("recursive", "true")
+                        .queryParam("waitIndex", String.valueOf(waitIndex))
+                        .get(ClientResponse.class);
+                return readResult(response, ClientResponse.Status.OK, ClientResponse.Status.NOT_FOUND, ClientResponse.Status.BAD_REQUEST);
+            }
+        });
+    }
+
+    private EtcdResult readResult(ClientResponse response, ClientResponse.Status... expected) throws IOException {
         String content = "";
-        if (status != ClientResponse.Status.OK && status != ClientResponse.Status.NOT_FOUND) {
-            logger.error(String.format("Error when fetching etcd[%d]: %s", status.getStatusCode(), status.toString()));
-        } else {
-            try {
-                Scanner s = new Scanner(responseInputStream).useDelimiter("\\A");
+        try {
+            checkAvailable(response);
+            ClientResponse.Status status = response.getClientResponseStatus();
+            if (!Arrays.asList(expected).contains(status)) {
+                stats.onError(response.getStatus());
+                logger.error(String.format("Error when fetching etcd[%d]: %s", response.getStatus(), status));
+            } else {
+                Scanner s = new Scanner(entity(response)).useDelimiter("\\A");
                 if (s.hasNext()) {
                     content = s.next();
-                    ObjectMapper mapper = new ObjectMapper();
-                    return mapper.readValue(content, EtcdResult.class);
+                    long start = System.nanoTime();
+                    EtcdResult result = RESULT_READER.readValue(content);
+                    stats.onParsed(System.nanoTime() - start);
+                    String etcdIndex = response.getHeaders().getFirst("X-Etcd-Index");
+                    if (etcdIndex != null) {
+                        result.etcdIndex = Long.parseLong(etcdIndex);
+                    }
+                    return result;
                 }
-            } catch (JsonParseException e) {
-                logger.error(String.format("Response error from etcd with content:[%s]", content), e);
-            } catch (JsonMappingException e) {
-                logger.error(String.format("Response error from etcd with content:[%s]", content), e);
-            } catch (IOException e) {
-                logger.error(String.format("Response error from etcd with content:[%s]", content), e);
-            } finally {
-                try {
-                    responseInputStream.close();
-                } catch (Throwable ignored){}
             }
+        } catch (JsonParseException e) {
+            logger.error(String.format("Response error from etcd with content:[%s]", content), e);
+        } catch (JsonMappingException e) {
+            logger.error(String.format("Response error from etcd with content:[%s]", content), e);
+        } finally {
+            release(response);
         }
         return null;
     }
 
-    private String evaluateTimeToLive() {
-        return new BigDecimal(etcdInterval*120).divide(new BigDecimal(100), 0, RoundingMode.UP).toString();
-    }
-
 }
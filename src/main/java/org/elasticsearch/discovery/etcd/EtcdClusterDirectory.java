@@ -0,0 +1,177 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.cloud.etcd.EtcdService;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The instances of the clusters listed in <tt>cloud.etcd.clusters.&lt;cluster name&gt;: &lt;key&gt;</tt>, which are
+ * registered under a common parent key. Each node registers under the key of its own <tt>cluster.name</tt>, such as
+ * the inner nodes of a tribe node. The nodes of a JVM that read the same parent from the same etcd share one
+ * directory, so one recursive read of the parent and one watch serve every cluster, whatever their number.
+ */
+public class EtcdClusterDirectory {
+
+    /** the directories in use in this JVM, by etcd and parent key */
+    private static final Map<String, EtcdClusterDirectory> DIRECTORIES = new HashMap<>();
+
+    private final String id;
+
+    private final EtcdStore store;
+
+    private final String etcdTransportkey;
+
+    private final EtcdMembershipWatcher watcher;
+
+    private int references;
+
+    private EtcdClusterDirectory(String id, ESLogger logger, Settings settings, EtcdService etcdService, String parentKey,
+                                 String etcdTransportkey) {
+        this.id = id;
+        this.store = etcdService.newStore(parentKey);
+        this.etcdTransportkey = etcdTransportkey;
+        if (settings.getAsBoolean("cloud.etcd.watch.enabled", true)) {
+            List<String> hintKeys = new ArrayList<>();
+            String hintKey = masterHintKey(settings);
+            if (hintKey != null) {
+                for (String clusterKey : clusterKeys(settings).values()) {
+                    hintKeys.add(clusterId(clusterKey) + "/" + hintKey);
+                }
+            }
+            watcher = new EtcdMembershipWatcher(logger, store, etcdTransportkey, etcdService.interval(),
+                    EsExecutors.daemonThreadFactory(settings, "etcd_clusters_watcher"), new EtcdBackoff(settings), EtcdLayout.clusters(), null,
+                    hintKeys);
+        } else {
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return the key the node registers under: the key of its cluster in <tt>cloud.etcd.clusters</tt>, or
+     * <tt>cloud.etcd.key</tt>
+     */
+    public static String serviceKey(Settings settings) {
+        String clusterName = ClusterName.clusterNameFromSettings(settings).value();
+        String key = clusterKeys(settings).get(clusterName);
+        return key != null ? key : settings.get("cloud.etcd.key", "/services/elasticsearch");
+    }
+
+    /**
+     * @return the key of the master hint relative to the key of a cluster, <tt>null</tt> without
+     * <tt>cloud.etcd.master_hint.enabled</tt>
+     */
+    public static String masterHintKey(Settings settings) {
+        return settings.getAsBoolean("cloud.etcd.master_hint.enabled", true)
+                ? settings.get("cloud.etcd.master_hint.key", EtcdMasterHint.KEY) : null;
+    }
+
+    /**
+     * @return the keys of <tt>cloud.etcd.clusters</tt> by cluster name, empty if the node only reads its own cluster
+     */
+    public static Map<String, String> clusterKeys(Settings settings) {
+        return new LinkedHashMap<>(settings.getByPrefix("cloud.etcd.clusters.").getAsMap());
+    }
+
+    /**
+     * Checks that every key of <tt>cloud.etcd.clusters</tt> shares the parent of the service key.
+     *
+     * @return the parent of the service key
+     */
+    public static String parentKey(Settings settings, String serviceKey) {
+        String parent = parent(serviceKey);
+        for (Map.Entry<String, String> cluster : clusterKeys(settings).entrySet()) {
+            if (!parent.equals(parent(cluster.getValue()))) {
+                throw new ElasticsearchIllegalArgumentException("the key [" + cluster.getValue() + "] of cluster [" + cluster.getKey()
+                        + "] is not under [" + parent + "], the parent of [" + serviceKey + "]");
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * @return the last key of the path, the id of the cluster in the qualified instance ids
+     */
+    public static String clusterId(String serviceKey) {
+        String path = trim(serviceKey);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the shared directory of the parent key, to {@link #release()} once the node stops
+     */
+    public static synchronized EtcdClusterDirectory acquire(ESLogger logger, Settings settings, EtcdService etcdService, String parentKey,
+                                                            String etcdTransportkey) {
+        String id = etcdService.etcdId() + "|" + parentKey + "|" + etcdTransportkey;
+        EtcdClusterDirectory directory = DIRECTORIES.get(id);
+        if (directory == null) {
+            directory = new EtcdClusterDirectory(id, logger, settings, etcdService, parentKey, etcdTransportkey);
+            DIRECTORIES.put(id, directory);
+        }
+        directory.references++;
+        return directory;
+    }
+
+    /**
+     * Stops the watch and closes the connections once the last node using the directory released it.
+     */
+    public void release() {
+        synchronized (EtcdClusterDirectory.class) {
+            if (--references > 0) {
+                return;
+            }
+            DIRECTORIES.remove(id);
+        }
+        if (watcher != null) {
+            watcher.stop();
+        }
+        store.close();
+    }
+
+    /**
+     * @return the shared watch of every cluster, <tt>null</tt> without <tt>cloud.etcd.watch.enabled</tt>
+     */
+    public EtcdMembershipWatcher watcher() {
+        return watcher;
+    }
+
+    /**
+     * Reads every cluster at once, concurrent and recent reads being shared by the nodes of the directory.
+     */
+    public EtcdListing read() {
+        return EtcdLayout.clusters().read(store, etcdTransportkey, null);
+    }
+
+    /**
+     * @return the entries of the cluster, by instance id
+     */
+    public static <V> Map<String, V> cluster(Map<String, V> qualified, String clusterId) {
+        String prefix = clusterId + "/";
+        Map<String, V> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, V> entry : qualified.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                entries.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    private static String parent(String key) {
+        String path = trim(key);
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static String trim(String key) {
+        String path = key.startsWith("/") ? key : "/" + key;
+        return path.endsWith("/") && path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+    }
+}
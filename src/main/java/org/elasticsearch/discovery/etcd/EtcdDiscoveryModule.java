@@ -16,14 +16,23 @@
  */
 package org.elasticsearch.discovery.etcd;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.discovery.zen.ZenDiscoveryModule;
 
+/**
+ * Zen discovery with the etcd hosts provider, which needs the etcd service the plugin only binds with
+ * <tt>cloud.enabled</tt>.
+ */
 public class EtcdDiscoveryModule extends ZenDiscoveryModule {
 
     @Inject
     public EtcdDiscoveryModule(Settings settings) {
+        if (!settings.getAsBoolean("cloud.enabled", true)) {
+            // fail here rather than on the unbound EtcdService when the hosts provider is injected
+            throw new ElasticsearchIllegalArgumentException("discovery.type [etcd] requires cloud.enabled to be true");
+        }
         addUnicastHostProvider(EtcdUnicastHostsProvider.class);
     }
 
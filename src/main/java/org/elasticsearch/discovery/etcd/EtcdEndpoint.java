@@ -0,0 +1,126 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * One member of the etcd cluster, with the latency and error statistics used to route requests to it.
+ */
+public class EtcdEndpoint {
+
+    /** weight of the latest sample in the latency moving average */
+    private static final double ALPHA = 0.2;
+
+    private final String url;
+
+    private final WebResource resource;
+
+    private final WebResource compressedResource;
+
+    private final WebResource longPollResource;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private volatile long latencyNanos;
+
+    private volatile long retryAfterMillis;
+
+    private int failures;
+
+    public EtcdEndpoint(String host, Client client, boolean gzip, TimeValue watchTimeout, TimeValue initialBackoff, TimeValue maxBackoff) {
+        this.url = normalize(host);
+        this.resource = client.resource(url);
+        // listings can be large, let etcd (or a proxy in front of it) compress them
+        this.compressedResource = client.resource(url);
+        if (gzip) {
+            this.compressedResource.addFilter(new GZIPContentEncodingFilter(false));
+        }
+        // long polls are held open by etcd until something changes, bound them so a lost connection is noticed
+        this.longPollResource = client.resource(url);
+        this.longPollResource.setProperty(ClientConfig.PROPERTY_READ_TIMEOUT, (int) watchTimeout.millis());
+        this.initialBackoffMillis = initialBackoff.millis();
+        this.maxBackoffMillis = maxBackoff.millis();
+    }
+
+    public String url() {
+        return url;
+    }
+
+    /**
+     * @return the root of the member, for short requests
+     */
+    public WebResource resource() {
+        return resource;
+    }
+
+    /**
+     * @return the root of the member, for requests with a large response worth compressing
+     */
+    public WebResource compressed() {
+        return compressedResource;
+    }
+
+    /**
+     * @return the root of the member, for watches that wait up to the watch timeout for an answer
+     */
+    public WebResource longPoll() {
+        return longPollResource;
+    }
+
+    /**
+     * @return the moving average of the request latency, 0 until the first request completed
+     */
+    public long latencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return <tt>false</tt> while the endpoint is skipped after failures
+     */
+    public boolean isAvailable(long nowMillis) {
+        return retryAfterMillis <= nowMillis;
+    }
+
+    public long retryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public synchronized void onSuccess(long tookNanos) {
+        failures = 0;
+        retryAfterMillis = 0;
+        latencyNanos = latencyNanos == 0 ? tookNanos : (long) (ALPHA * tookNanos + (1 - ALPHA) * latencyNanos);
+    }
+
+    /**
+     * Skips the endpoint for an exponentially growing period, capped to the max backoff.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        long backoff = initialBackoffMillis << Math.min(failures - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffMillis) {
+            backoff = maxBackoffMillis;
+        }
+        retryAfterMillis = System.currentTimeMillis() + backoff;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+    private static String normalize(String host) {
+        String url = host.trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            url = "http://" + url;
+        }
+        return url;
+    }
+}
@@ -0,0 +1,174 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.transport.BoundTransportAddress;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Registers the transport address of this node, and its roles if configured, under its instance keys and refreshes
+ * it on the generic thread pool, well inside the TTL, so that registration never happens on the discovery path.
+ * Refreshes are jittered, and backed off while etcd fails, but never later than the max delay so that a retry can
+ * still land before the registration expires.
+ */
+public class EtcdHeartbeat implements Runnable {
+
+    private final ESLogger logger;
+
+    private final ThreadPool threadPool;
+
+    private final TransportService transportService;
+
+    private final EtcdStore etcdStore;
+
+    private final List<String> etcdInstanceKeys;
+
+    private final String etcdTransportkey;
+
+    private final EtcdNodeAttributes attributes;
+
+    private final TimeValue period;
+
+    private final EtcdBackoff backoff;
+
+    /** the latest a refresh may come for its request to complete within the TTL, the period if shorter */
+    private final TimeValue maxDelay;
+
+    private final Object beatMutex = new Object();
+
+    private volatile boolean running;
+
+    private volatile boolean stopped;
+
+    /** the value of the last accepted registration */
+    private volatile String registeredValue;
+
+    private volatile ScheduledFuture<?> future;
+
+    public EtcdHeartbeat(ESLogger logger, ThreadPool threadPool, TransportService transportService, EtcdStore etcdStore,
+                         List<String> etcdInstanceKeys, String etcdTransportkey, EtcdNodeAttributes attributes, TimeValue period,
+                         EtcdBackoff backoff, TimeValue maxDelay) {
+        this.logger = logger;
+        this.threadPool = threadPool;
+        this.transportService = transportService;
+        this.etcdStore = etcdStore;
+        this.etcdInstanceKeys = etcdInstanceKeys;
+        this.etcdTransportkey = etcdTransportkey;
+        this.attributes = attributes;
+        this.period = period;
+        this.backoff = backoff;
+        this.maxDelay = maxDelay;
+    }
+
+    public synchronized void start() {
+        if (running || stopped) {
+            return;
+        }
+        running = true;
+        threadPool.generic().execute(this);
+    }
+
+    /**
+     * Stops the refreshes for good, waiting for the one in progress if any so that nothing is registered after this
+     * returns.
+     */
+    public void stop() {
+        stopped = true;
+        running = false;
+        ScheduledFuture<?> future = this.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+        synchronized (beatMutex) {
+            // the last refresh has completed
+        }
+    }
+
+    /**
+     * Stops the refreshes and deletes the registration, if it still holds the value this node registered.
+     */
+    public void deregister() {
+        stop();
+        String value = registeredValue;
+        if (value == null) {
+            return;
+        }
+        try {
+            if (etcdStore.deregister(etcdInstanceKeys, etcdTransportkey, value, attributes)) {
+                logger.debug("etcd registration {} deleted", etcdInstanceKeys);
+            }
+            registeredValue = null;
+        } catch (Exception e) {
+            logger.warn("etcd deregistration failed, the registration will expire: {}", e.getMessage());
+            logger.trace("etcd deregistration failed", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (beatMutex) {
+            if (running) {
+                refresh();
+            }
+        }
+    }
+
+    private void refresh() {
+        try {
+            if (beat()) {
+                backoff.onSuccess();
+            } else {
+                backoff.onFailure();
+            }
+        } catch (Exception e) {
+            backoff.onFailure();
+            logger.warn("etcd registration failed: {}", e.getMessage());
+            logger.trace("etcd registration failed", e);
+        } finally {
+            if (running) {
+                long delay = Math.min(backoff.delayMillis(period.millis()), Math.max(period.millis(), maxDelay.millis()));
+                if (backoff.failures() > 0) {
+                    logger.debug("etcd registration failed {} times in a row, next attempt in {}ms", backoff.failures(), delay);
+                }
+                future = threadPool.schedule(TimeValue.timeValueMillis(delay), ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+
+    /**
+     * @return <tt>false</tt> if etcd did not accept the registration
+     */
+    private boolean beat() {
+        String value = publishValue();
+        if (value == null) {
+            // transport is not bound yet
+            return true;
+        }
+        if (etcdStore.register(etcdInstanceKeys, etcdTransportkey, value, attributes)) {
+            registeredValue = value;
+            etcdStore.stats().onRegistered();
+            return true;
+        }
+        return false;
+    }
+
+    private String publishValue() {
+        BoundTransportAddress boundAddress = transportService.boundAddress();
+        if (boundAddress == null) {
+            return null;
+        }
+        TransportAddress transportAddress = boundAddress.publishAddress();
+        if (transportAddress instanceof InetSocketTransportAddress) {
+            InetSocketAddress publishAddress = ((InetSocketTransportAddress) transportAddress).address();
+            return publishAddress.getHostString() + ":" + publishAddress.getPort();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,181 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where the instances are registered under the service key. The default <tt>flat</tt> layout keeps every instance
+ * directly under the key. With <tt>cloud.etcd.layout: zones</tt> each instance is registered under
+ * <tt>&lt;key&gt;/&lt;zone&gt;/&lt;instance&gt;</tt>, and the master-eligible ones also under
+ * <tt>&lt;key&gt;/_seeds/&lt;instance&gt;</tt>. A round then reads the local zone and the seeds, whatever the size
+ * of the other zones, and only reads the whole tree when neither holds another instance. The {@link #clusters()}
+ * layout reads the instances of several clusters, <tt>&lt;key&gt;/&lt;cluster key&gt;/&lt;instance&gt;</tt>, with
+ * instance ids qualified by the key of their cluster.
+ */
+public class EtcdLayout {
+
+    public static final String FLAT = "flat";
+
+    public static final String ZONES = "zones";
+
+    private static final EtcdLayout FLAT_LAYOUT = new EtcdLayout(null, null, false);
+
+    private static final EtcdLayout CLUSTERS_LAYOUT = new EtcdLayout(null, null, false, true);
+
+    private final String zone;
+
+    private final String seedsKey;
+
+    private final boolean seed;
+
+    private final boolean clusters;
+
+    EtcdLayout(String zone, String seedsKey, boolean seed) {
+        this(zone, seedsKey, seed, false);
+    }
+
+    private EtcdLayout(String zone, String seedsKey, boolean seed, boolean clusters) {
+        this.zone = zone;
+        this.seedsKey = seedsKey;
+        this.seed = seed;
+        this.clusters = clusters;
+    }
+
+    public static EtcdLayout flat() {
+        return FLAT_LAYOUT;
+    }
+
+    /**
+     * @return the layout of a key holding several clusters, only used to read them
+     */
+    public static EtcdLayout clusters() {
+        return CLUSTERS_LAYOUT;
+    }
+
+    public static EtcdLayout fromSettings(Settings settings) {
+        String layout = settings.get("cloud.etcd.layout", FLAT);
+        if (FLAT.equals(layout)) {
+            return FLAT_LAYOUT;
+        }
+        if (!ZONES.equals(layout)) {
+            throw new ElasticsearchIllegalArgumentException("unsupported cloud.etcd.layout [" + layout + "], expected [flat] or [zones]");
+        }
+        EtcdNodeAttributes local = EtcdNodeAttributes.local(settings);
+        if (local.zone() == null) {
+            throw new ElasticsearchIllegalArgumentException("cloud.etcd.layout [zones] requires cloud.etcd.zone or node.zone to be set");
+        }
+        String seedsKey = settings.get("cloud.etcd.layout.seeds_key", "_seeds");
+        if (seedsKey.equals(local.zone())) {
+            throw new ElasticsearchIllegalArgumentException("the zone [" + local.zone() + "] is the key of the seeds");
+        }
+        return new EtcdLayout(local.zone(), seedsKey, local.master());
+    }
+
+    /**
+     * @return whether the key is one of the plugin, such as the master hint, rather than an instance
+     */
+    public static boolean reserved(String id) {
+        return id.startsWith("_") || id.contains("/_");
+    }
+
+    public boolean zoned() {
+        return zone != null;
+    }
+
+    /**
+     * @return the keys this node registers under, relative to the service key
+     */
+    public List<String> instanceKeys(String instanceKey) {
+        if (!zoned()) {
+            return Collections.singletonList(instanceKey);
+        }
+        List<String> keys = new ArrayList<>(2);
+        keys.add(zone + "/" + instanceKey);
+        if (seed) {
+            keys.add(seedsKey + "/" + instanceKey);
+        }
+        return keys;
+    }
+
+    /**
+     * Reads the instances this node pings. In the zoned layout, the local zone and the seeds are read, and the whole
+     * tree only if they do not hold any instance besides this node.
+     *
+     * @return <tt>null</tt> if etcd could not answer
+     */
+    public EtcdListing read(EtcdStore store, String etcdTransportkey, String localInstance) {
+        if (clusters) {
+            return store.listClusters(etcdTransportkey);
+        }
+        if (!zoned()) {
+            return store.listMembers(etcdTransportkey);
+        }
+        EtcdListing zoneListing = store.listMembers(zone, etcdTransportkey, 1);
+        EtcdListing seedsListing = store.listMembers(seedsKey, etcdTransportkey, 1);
+        if (zoneListing == null || seedsListing == null) {
+            return null;
+        }
+        EtcdListing merged = merge(zoneListing, seedsListing);
+        if (hasPeer(merged, localInstance)) {
+            return merged;
+        }
+        EtcdListing listing = store.listMembers(null, etcdTransportkey, 2);
+        if (listing != null) {
+            listing.fullTree = true;
+        }
+        return listing;
+    }
+
+    /**
+     * @param path a key relative to the service key, split on <tt>/</tt>
+     * @return the path relative to the zone or the seeds holding it, starting with the qualified instance id in the
+     * clusters layout, <tt>null</tt> if this node does not read it
+     */
+    public String[] relative(String[] path, boolean fullTree) {
+        if (clusters) {
+            if (path.length < 2) {
+                return null;
+            }
+            String[] relative = Arrays.copyOfRange(path, 1, path.length);
+            relative[0] = path[0] + "/" + path[1];
+            return relative;
+        }
+        if (!zoned()) {
+            return path;
+        }
+        if (path.length < 2 || (!fullTree && !zone.equals(path[0]) && !seedsKey.equals(path[0]))) {
+            return null;
+        }
+        return Arrays.copyOfRange(path, 1, path.length);
+    }
+
+    private static EtcdListing merge(EtcdListing first, EtcdListing second) {
+        EtcdListing merged = new EtcdListing();
+        for (EtcdListing listing : Arrays.asList(first, second)) {
+            merged.members.putAll(listing.members);
+            merged.attributes.putAll(listing.attributes);
+            if (listing.errorCode != 0 && listing.errorCode != EtcdClient.KEY_NOT_FOUND) {
+                merged.errorCode = listing.errorCode;
+                merged.message = listing.message;
+                merged.cause = listing.cause;
+            }
+        }
+        // watching from the older index replays the changes in between, which are idempotent
+        merged.etcdIndex = Math.min(first.etcdIndex, second.etcdIndex);
+        return merged;
+    }
+
+    private static boolean hasPeer(EtcdListing listing, String localInstance) {
+        for (String id : listing.members.keySet()) {
+            if (!id.equals(localInstance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,20 @@
+package org.elasticsearch.discovery.etcd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The instances registered under the service key, as read from a recursive listing: instance id to transport address.
+ */
+public class EtcdListing {
+    public Map<String, String> members = new LinkedHashMap<>();
+    /** the roles of the instances which registered them, by instance id */
+    public Map<String, EtcdNodeAttributes> attributes = new LinkedHashMap<>();
+    public int errorCode = 0;
+    public String message;
+    public String cause;
+    /** value of the X-Etcd-Index response header, the index to watch from */
+    public long etcdIndex;
+    /** whether every zone has been read, in the zoned layout */
+    public boolean fullTree;
+}
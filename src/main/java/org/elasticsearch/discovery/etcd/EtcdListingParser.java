@@ -0,0 +1,173 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams a recursive etcd v2 listing of the service key and only keeps the transport address of each instance,
+ * supporting both the <tt>&lt;id&gt;</tt> and the <tt>&lt;id&gt;/transport</tt> layouts, along with the
+ * <tt>&lt;id&gt;/attributes</tt> of the instances registering their roles. Any other field or key is skipped
+ * without being materialized. With a depth of 2, the listed key holds zones which hold the instances.
+ */
+public class EtcdListingParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String ATTRIBUTES_SUFFIX = "/" + EtcdNodeAttributes.KEY;
+
+    private final String transportSuffix;
+
+    private final int depth;
+
+    private final boolean qualified;
+
+    public EtcdListingParser(String etcdTransportkey) {
+        this(etcdTransportkey, 1);
+    }
+
+    /**
+     * @param depth the number of directory levels from the listed key down to the instances
+     */
+    public EtcdListingParser(String etcdTransportkey, int depth) {
+        this(etcdTransportkey, depth, false);
+    }
+
+    /**
+     * @param qualified whether the instance ids keep the keys of the levels above the instances,
+     *                  <tt>&lt;cluster&gt;/&lt;instance&gt;</tt>
+     */
+    public EtcdListingParser(String etcdTransportkey, int depth, boolean qualified) {
+        this.transportSuffix = "/" + etcdTransportkey;
+        this.depth = depth;
+        this.qualified = qualified;
+    }
+
+    public EtcdListing parse(InputStream inputStream) throws IOException {
+        EtcdListing listing = new EtcdListing();
+        try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return listing;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("node".equals(field) && token == JsonToken.START_OBJECT) {
+                    parseLevel(parser, listing, depth);
+                } else if ("errorCode".equals(field)) {
+                    listing.errorCode = parser.getValueAsInt();
+                } else if ("message".equals(field)) {
+                    listing.message = parser.getValueAsString();
+                } else if ("cause".equals(field)) {
+                    listing.cause = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return listing;
+    }
+
+    private void parseLevel(JsonParser parser, EtcdListing listing, int depth) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("nodes".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (depth > 1) {
+                        parseLevel(parser, listing, depth - 1);
+                    } else {
+                        parseInstance(parser, listing);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseInstance(JsonParser parser, EtcdListing listing) throws IOException {
+        String key = null;
+        String value = null;
+        String[] children = new String[2];
+        boolean dir = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("key".equals(field)) {
+                key = parser.getText();
+            } else if ("value".equals(field)) {
+                value = parser.getText();
+            } else if ("dir".equals(field)) {
+                dir = token == JsonToken.VALUE_TRUE;
+            } else if ("nodes".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parseChild(parser, children);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (key == null) {
+            return;
+        }
+        String id = key.substring(idStart(key) + 1);
+        if (EtcdLayout.reserved(id)) {
+            return;
+        }
+        if (dir) {
+            String transport = children[0];
+            if (transport != null && !transport.isEmpty()) {
+                listing.members.put(id, transport);
+                if (children[1] != null) {
+                    listing.attributes.put(id, EtcdNodeAttributes.parse(children[1]));
+                }
+            }
+        } else if (value != null) {
+            listing.members.put(id, value);
+        }
+    }
+
+    /**
+     * @return the index of the <tt>/</tt> before the instance id, which spans the last <tt>depth</tt> keys when qualified
+     */
+    private int idStart(String key) {
+        int start = key.lastIndexOf('/');
+        for (int level = 1; qualified && level < depth && start > 0; level++) {
+            start = key.lastIndexOf('/', start - 1);
+        }
+        return start;
+    }
+
+    /**
+     * Reads a child of an instance directory into <tt>children</tt>: the transport address first, then the
+     * attributes. Any other child is skipped.
+     */
+    private void parseChild(JsonParser parser, String[] children) throws IOException {
+        String key = null;
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("key".equals(field)) {
+                key = parser.getText();
+            } else if ("value".equals(field) && (key == null || key.endsWith(transportSuffix) || key.endsWith(ATTRIBUTES_SUFFIX))) {
+                // etcd writes the key first, so the value of any other child is never read
+                value = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (key == null) {
+            return;
+        }
+        if (key.endsWith(transportSuffix)) {
+            children[0] = value;
+        } else if (key.endsWith(ATTRIBUTES_SUFFIX)) {
+            children[1] = value;
+        }
+    }
+}
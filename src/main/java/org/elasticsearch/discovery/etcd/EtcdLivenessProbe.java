@@ -0,0 +1,189 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Filters out the registered nodes that do not accept TCP connections, such as a crashed node whose registration has
+ * not expired yet, so that zen does not spend a ping timeout on them. Every address is connected to at once with
+ * non-blocking channels on a single selector, within <tt>cloud.etcd.probe.timeout</tt>. An unreachable address is not
+ * probed again, and left out, for <tt>cloud.etcd.probe.quarantine</tt>. If no peer is reachable, the nodes are
+ * returned unfiltered: the probe can only make a round faster, never lose a node. The local node is neither probed
+ * nor counted as a reachable peer, it would always accept the connection.
+ */
+public class EtcdLivenessProbe {
+
+    private final ESLogger logger;
+
+    private final long timeoutMillis;
+
+    private final long quarantineMillis;
+
+    /** the quarantined addresses, with the time they are released at */
+    private final ConcurrentMap<InetSocketAddress, Long> quarantine = ConcurrentCollections.newConcurrentMap();
+
+    public EtcdLivenessProbe(ESLogger logger, Settings settings) {
+        this.logger = logger;
+        this.timeoutMillis = settings.getAsTime("cloud.etcd.probe.timeout", TimeValue.timeValueMillis(300)).millis();
+        this.quarantineMillis = settings.getAsTime("cloud.etcd.probe.quarantine", TimeValue.timeValueSeconds(10)).millis();
+    }
+
+    public List<DiscoveryNode> filter(List<DiscoveryNode> nodes) {
+        return filter(nodes, null);
+    }
+
+    /**
+     * @param local the publish address of this node, <tt>null</tt> if it is not among the nodes
+     */
+    public List<DiscoveryNode> filter(List<DiscoveryNode> nodes, TransportAddress local) {
+        if (nodes.isEmpty()) {
+            return nodes;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<InetSocketAddress, Long> entry : quarantine.entrySet()) {
+            if (entry.getValue() <= now) {
+                quarantine.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        InetSocketAddress self = address(local);
+        Set<InetSocketAddress> candidates = new HashSet<>();
+        Set<InetSocketAddress> quarantined = new HashSet<>();
+        for (DiscoveryNode node : nodes) {
+            InetSocketAddress address = address(node.address());
+            if (address == null || address.equals(self)) {
+                continue;
+            }
+            Long releasedAt = quarantine.get(address);
+            if (releasedAt != null && releasedAt > now) {
+                quarantined.add(address);
+            } else {
+                candidates.add(address);
+            }
+        }
+        Set<InetSocketAddress> unreachable = probe(candidates);
+        long releasedAt = System.currentTimeMillis() + quarantineMillis;
+        for (InetSocketAddress address : candidates) {
+            if (unreachable.contains(address)) {
+                quarantine.put(address, releasedAt);
+            } else {
+                quarantine.remove(address);
+            }
+        }
+        unreachable.addAll(quarantined);
+        if (unreachable.isEmpty()) {
+            return nodes;
+        }
+        List<DiscoveryNode> reachable = new ArrayList<>(nodes.size());
+        boolean peerReachable = false;
+        for (DiscoveryNode node : nodes) {
+            InetSocketAddress address = address(node.address());
+            if (address == null || !unreachable.contains(address)) {
+                reachable.add(node);
+                peerReachable |= address == null || !address.equals(self);
+            }
+        }
+        if (!peerReachable) {
+            logger.debug("no registered peer accepted a connection within {}ms, pinging all of them", timeoutMillis);
+            return nodes;
+        }
+        logger.debug("leaving out unreachable nodes {}", unreachable);
+        return reachable;
+    }
+
+    /**
+     * @return the addresses that refused the connection or did not accept it before the timeout
+     */
+    Set<InetSocketAddress> probe(Set<InetSocketAddress> addresses) {
+        Set<InetSocketAddress> unreachable = new HashSet<>(addresses);
+        if (addresses.isEmpty()) {
+            return unreachable;
+        }
+        Map<SocketChannel, InetSocketAddress> pending = new HashMap<>();
+        try (Selector selector = Selector.open()) {
+            for (InetSocketAddress address : addresses) {
+                if (address.isUnresolved()) {
+                    continue;
+                }
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    if (channel.connect(address)) {
+                        unreachable.remove(address);
+                        channel.close();
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                        pending.put(channel, address);
+                    }
+                } catch (IOException e) {
+                    logger.trace("failed to connect to {}: {}", address, e.getMessage());
+                    close(channel);
+                }
+            }
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!pending.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || selector.select(remaining) < 0) {
+                    break;
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    InetSocketAddress address = pending.remove(channel);
+                    try {
+                        if (channel.finishConnect()) {
+                            unreachable.remove(address);
+                        }
+                    } catch (IOException e) {
+                        logger.trace("failed to connect to {}: {}", address, e.getMessage());
+                    }
+                    key.cancel();
+                    close(channel);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            logger.debug("failed to probe the registered nodes: {}", e.getMessage());
+            // without a probe no node is filtered out
+            unreachable.clear();
+        } finally {
+            for (SocketChannel channel : pending.keySet()) {
+                close(channel);
+            }
+        }
+        return unreachable;
+    }
+
+    private static InetSocketAddress address(TransportAddress address) {
+        if (address instanceof InetSocketTransportAddress) {
+            return ((InetSocketTransportAddress) address).address();
+        }
+        return null;
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
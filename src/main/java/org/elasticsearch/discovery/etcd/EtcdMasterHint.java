@@ -0,0 +1,78 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The elected master, published by the master itself under the service key as
+ * <tt>_master: id=&lt;node id&gt;,address=10.0.0.1:9300</tt> so that joining nodes ping it first.
+ */
+public class EtcdMasterHint {
+
+    /** the default key of the hint, keys starting with <tt>_</tt> are never read as instances */
+    public static final String KEY = "_master";
+
+    private final String nodeId;
+
+    private final String address;
+
+    public EtcdMasterHint(String nodeId, String address) {
+        this.nodeId = nodeId;
+        this.address = address;
+    }
+
+    /**
+     * @return the hint for the node, <tt>null</tt> if it is not bound to an inet address
+     */
+    public static EtcdMasterHint of(DiscoveryNode node) {
+        if (!(node.address() instanceof InetSocketTransportAddress)) {
+            return null;
+        }
+        InetSocketAddress address = ((InetSocketTransportAddress) node.address()).address();
+        return new EtcdMasterHint(node.id(), address.getHostString() + ":" + address.getPort());
+    }
+
+    /**
+     * @return the parsed hint, <tt>null</tt> for a <tt>null</tt> value or a value without an address
+     */
+    public static EtcdMasterHint parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String nodeId = null;
+        String address = null;
+        for (String field : Strings.tokenizeToStringArray(value, ",")) {
+            int eq = field.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String name = field.substring(0, eq).trim();
+            String fieldValue = field.substring(eq + 1).trim();
+            if ("id".equals(name)) {
+                nodeId = fieldValue;
+            } else if ("address".equals(name) && !fieldValue.isEmpty()) {
+                address = fieldValue;
+            }
+        }
+        return address == null ? null : new EtcdMasterHint(nodeId, address);
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the transport address of the master, in the format of the registered values
+     */
+    public String address() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return "id=" + nodeId + ",address=" + address;
+    }
+}
@@ -0,0 +1,137 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.common.logging.ESLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last membership read from etcd, kept in the node data path so that a restarting node can ping its peers
+ * before etcd answers. The file is replaced atomically, once its new content is on disk, and only when the members
+ * changed: the etcd index is stored but not compared, as it goes backwards after an etcd restore or with v3
+ * revisions.
+ */
+public class EtcdMembershipFile {
+
+    public static final String FILE_NAME = "etcd-membership.json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ESLogger logger;
+
+    private final Path file;
+
+    private long etcdIndex = -1;
+
+    private Map<String, String> members;
+
+    private Map<String, EtcdNodeAttributes> attributes;
+
+    public EtcdMembershipFile(ESLogger logger, File directory) {
+        this.logger = logger;
+        this.file = directory.toPath().resolve(FILE_NAME);
+    }
+
+    /**
+     * @return the persisted membership, or <tt>null</tt> if there is none or it cannot be read
+     */
+    public synchronized EtcdListing load() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            JsonNode root = MAPPER.readTree(file.toFile());
+            EtcdListing listing = new EtcdListing();
+            listing.etcdIndex = root.path("etcdIndex").asLong();
+            Iterator<Map.Entry<String, JsonNode>> fields = root.path("members").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> member = fields.next();
+                listing.members.put(member.getKey(), member.getValue().asText());
+            }
+            fields = root.path("attributes").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> attribute = fields.next();
+                listing.attributes.put(attribute.getKey(), EtcdNodeAttributes.parse(attribute.getValue().asText()));
+            }
+            etcdIndex = listing.etcdIndex;
+            members = new LinkedHashMap<>(listing.members);
+            attributes = new LinkedHashMap<>(listing.attributes);
+            return listing;
+        } catch (IOException e) {
+            logger.warn("failed to read the etcd membership from [{}]: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Persists the membership read at the given etcd index, unless the same members are already persisted.
+     *
+     * @return <tt>true</tt> if the file has been written
+     */
+    public boolean write(long etcdIndex, Map<String, String> members) {
+        return write(etcdIndex, members, Collections.<String, EtcdNodeAttributes>emptyMap());
+    }
+
+    /**
+     * Persists the membership along with the roles of the members which registered them.
+     *
+     * @return <tt>true</tt> if the file has been written
+     */
+    public synchronized boolean write(long etcdIndex, Map<String, String> members, Map<String, EtcdNodeAttributes> attributes) {
+        if (members.equals(this.members) && attributes.equals(this.attributes)) {
+            return false;
+        }
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("etcdIndex", etcdIndex);
+        ObjectNode values = root.putObject("members");
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            values.put(member.getKey(), member.getValue());
+        }
+        if (!attributes.isEmpty()) {
+            ObjectNode roles = root.putObject("attributes");
+            for (Map.Entry<String, EtcdNodeAttributes> attribute : attributes.entrySet()) {
+                roles.put(attribute.getKey(), attribute.getValue().toString());
+            }
+        }
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            ByteBuffer bytes = ByteBuffer.wrap(MAPPER.writeValueAsBytes(root));
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                // a crash right after the rename must not leave an empty file in place of the previous membership
+                channel.force(true);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to write the etcd membership to [{}]: {}", file, e.getMessage());
+            return false;
+        }
+        this.etcdIndex = etcdIndex;
+        this.members = new LinkedHashMap<>(members);
+        this.attributes = new LinkedHashMap<>(attributes);
+        logger.trace("persisted etcd membership at index [{}]", etcdIndex);
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.ImmutableSettings;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps an in-memory snapshot of the instances registered under the service key up to date by long-polling
+ * etcd with {@code wait=true&waitIndex=}. A full recursive read is only done on start, after an error or when
+ * the watched index has been compacted away, after a delay that is jittered and backed off while etcd fails.
+ * The master hints under the service key are kept in the snapshot too, so that rounds never read them from etcd.
+ */
+public class EtcdMembershipWatcher implements Runnable {
+
+    /** etcd v2 error code returned when the requested waitIndex is older than the retained event history */
+    static final int EVENT_INDEX_CLEARED = 401;
+
+    private final ESLogger logger;
+
+    private final EtcdStore etcdStore;
+
+    private final String etcdTransportkey;
+
+    private final int etcdInterval;
+
+    private final ThreadFactory threadFactory;
+
+    private final EtcdBackoff backoff;
+
+    private final EtcdLayout layout;
+
+    private final String localInstance;
+
+    /** whether the last resync read every zone, so that the events of every zone apply */
+    private boolean fullTree;
+
+    private final String servicePath;
+
+    private final Map<String, String> members = new LinkedHashMap<>();
+
+    private final Map<String, EtcdNodeAttributes> attributes = new LinkedHashMap<>();
+
+    /** the keys of the master hints to keep, relative to the service key */
+    private final Collection<String> hintKeys;
+
+    private final Map<String, String> hints = new LinkedHashMap<>();
+
+    private volatile Snapshot snapshot;
+
+    private final Object changeMutex = new Object();
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    private long waitIndex;
+
+    public EtcdMembershipWatcher(ESLogger logger, EtcdStore etcdStore, String etcdTransportkey, int etcdInterval, ThreadFactory threadFactory) {
+        this(logger, etcdStore, etcdTransportkey, etcdInterval, threadFactory, new EtcdBackoff(ImmutableSettings.EMPTY),
+                EtcdLayout.flat(), null);
+    }
+
+    public EtcdMembershipWatcher(ESLogger logger, EtcdStore etcdStore, String etcdTransportkey, int etcdInterval, ThreadFactory threadFactory,
+                                 EtcdBackoff backoff, EtcdLayout layout, String localInstance) {
+        this(logger, etcdStore, etcdTransportkey, etcdInterval, threadFactory, backoff, layout, localInstance,
+                Collections.<String>emptyList());
+    }
+
+    /**
+     * @param hintKeys the keys of the master hints to keep in the snapshot, relative to the service key
+     */
+    public EtcdMembershipWatcher(ESLogger logger, EtcdStore etcdStore, String etcdTransportkey, int etcdInterval, ThreadFactory threadFactory,
+                                 EtcdBackoff backoff, EtcdLayout layout, String localInstance, Collection<String> hintKeys) {
+        this.logger = logger;
+        this.hintKeys = hintKeys;
+        this.backoff = backoff;
+        this.layout = layout;
+        this.localInstance = localInstance;
+        this.etcdStore = etcdStore;
+        this.etcdTransportkey = etcdTransportkey;
+        this.etcdInterval = etcdInterval;
+        this.threadFactory = threadFactory;
+        this.servicePath = normalize(etcdStore.getEtcdKey());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = threadFactory.newThread(this);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * @return the last known membership, or <tt>null</tt> if the first full read has not completed yet
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Blocks until a snapshot other than the given one is published, so a caller wakes up as soon as the watch
+     * reports a change instead of polling.
+     *
+     * @return <tt>false</tt> if the timeout elapsed first
+     */
+    public boolean awaitChange(Snapshot seen, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (changeMutex) {
+            while (snapshot == seen) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                changeMutex.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean resync = true;
+        while (running) {
+            try {
+                if (resync) {
+                    resync = !resync();
+                    if (resync) {
+                        backoff.onFailure();
+                    } else {
+                        backoff.onSuccess();
+                    }
+                } else {
+                    resync = !watch();
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                if (EtcdClient.isTimeout(e)) {
+                    // nothing changed during the long poll, ask again from the same index
+                    continue;
+                }
+                backoff.onFailure();
+                logger.warn("etcd watch failed {} times in a row, resyncing: {}", backoff.failures(), e.getMessage());
+                logger.trace("etcd watch failed", e);
+                resync = true;
+            }
+            if (resync && running) {
+                try {
+                    Thread.sleep(backoff.delayMillis(etcdInterval * 1000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean resync() {
+        EtcdListing listing = layout.read(etcdStore, etcdTransportkey, localInstance);
+        if (listing == null) {
+            return false;
+        }
+        fullTree = listing.fullTree;
+        members.clear();
+        members.putAll(listing.members);
+        attributes.clear();
+        attributes.putAll(listing.attributes);
+        // read after the listing, any later change of a hint is replayed by the watch
+        hints.clear();
+        for (String hintKey : hintKeys) {
+            try {
+                String value = etcdStore.get(hintKey);
+                if (value != null) {
+                    hints.put(hintKey, value);
+                }
+            } catch (Exception e) {
+                logger.debug("failed to read the master hint [{}], waiting for the next change: {}", hintKey, e.getMessage());
+            }
+        }
+        waitIndex = listing.etcdIndex + 1;
+        publish();
+        logger.debug("etcd membership resynced at index [{}]: {}", listing.etcdIndex, members);
+        return true;
+    }
+
+    private boolean watch() {
+        boolean changed = false;
+        for (EtcdResult result : etcdStore.watch(waitIndex)) {
+            if (result.errorCode == EVENT_INDEX_CLEARED) {
+                logger.debug("etcd watch index [{}] has been cleared, resyncing", waitIndex);
+                return false;
+            }
+            if (result.errorCode != 0) {
+                logger.warn(String.format("Error[%d] %s : %s", result.errorCode, result.message, result.cause));
+                return false;
+            }
+            if (result.node != null) {
+                waitIndex = result.node.modifiedIndex + 1;
+                if (apply(result)) {
+                    changed = true;
+                    logger.trace("etcd membership changed by [{}] on [{}]", result.action, result.node.key);
+                }
+            }
+        }
+        if (changed) {
+            publish();
+        }
+        return true;
+    }
+
+    /**
+     * Applies a single watch event to the working copy of the membership.
+     *
+     * @return <tt>true</tt> if the membership changed
+     */
+    boolean apply(EtcdResult event) {
+        String key = normalize(event.node.key);
+        if (!key.startsWith(servicePath + "/")) {
+            return false;
+        }
+        boolean removed = "delete".equals(event.action) || "expire".equals(event.action) || "compareAndDelete".equals(event.action);
+        String relative = key.substring(servicePath.length() + 1);
+        if (hintKeys.contains(relative)) {
+            if (removed || event.node.value == null) {
+                return hints.remove(relative) != null;
+            }
+            return !event.node.value.equals(hints.put(relative, event.node.value));
+        }
+        String[] parts = layout.relative(key.substring(servicePath.length() + 1).split("/"), fullTree);
+        if (parts == null || EtcdLayout.reserved(parts[0])) {
+            return false;
+        }
+        String id = parts[0];
+        boolean instanceKey = parts.length == 1;
+        boolean transportKey = parts.length == 2 && etcdTransportkey.equals(parts[1]);
+        boolean attributesKey = parts.length == 2 && EtcdNodeAttributes.KEY.equals(parts[1]);
+        if (!instanceKey && !transportKey && !attributesKey) {
+            return false;
+        }
+        if (attributesKey) {
+            if (removed) {
+                return attributes.remove(id) != null && members.containsKey(id);
+            }
+            if (event.node.value == null) {
+                return false;
+            }
+            EtcdNodeAttributes parsed = EtcdNodeAttributes.parse(event.node.value);
+            return !parsed.equals(attributes.put(id, parsed)) && members.containsKey(id);
+        }
+        if (removed) {
+            if (instanceKey) {
+                attributes.remove(id);
+            }
+            return members.remove(id) != null;
+        }
+        if (event.node.dir || event.node.value == null || event.node.value.isEmpty()) {
+            return false;
+        }
+        String previous = members.put(id, event.node.value);
+        return !event.node.value.equals(previous);
+    }
+
+    void publish() {
+        synchronized (changeMutex) {
+            Snapshot previous = snapshot;
+            Map<String, EtcdNodeAttributes> registered = new LinkedHashMap<>();
+            for (Map.Entry<String, EtcdNodeAttributes> entry : attributes.entrySet()) {
+                if (members.containsKey(entry.getKey())) {
+                    registered.put(entry.getKey(), entry.getValue());
+                }
+            }
+            snapshot = new Snapshot(previous == null ? 0 : previous.version + 1, waitIndex - 1, ImmutableMap.copyOf(members),
+                    ImmutableMap.copyOf(registered), ImmutableMap.copyOf(hints));
+            changeMutex.notifyAll();
+        }
+    }
+
+    private static String normalize(String key) {
+        String path = key.startsWith("/") ? key : "/" + key;
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * An immutable view of the registered instances, versioned so consumers can cache what they derive from it.
+     */
+    public static class Snapshot {
+        public final long version;
+        /** the etcd index the membership has been read at */
+        public final long etcdIndex;
+        public final Map<String, String> members;
+        /** the roles of the members which registered them */
+        public final Map<String, EtcdNodeAttributes> attributes;
+        /** the values of the master hints, by key relative to the service key */
+        public final Map<String, String> hints;
+
+        Snapshot(long version, long etcdIndex, Map<String, String> members, Map<String, EtcdNodeAttributes> attributes,
+                 Map<String, String> hints) {
+            this.version = version;
+            this.etcdIndex = etcdIndex;
+            this.members = members;
+            this.attributes = attributes;
+            this.hints = hints;
+        }
+    }
+}
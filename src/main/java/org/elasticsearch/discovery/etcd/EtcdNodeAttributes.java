@@ -0,0 +1,103 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * The roles of a registered node, stored next to its transport address as
+ * <tt>&lt;instance&gt;/attributes: master=true,data=false,zone=eu-west-1a</tt>.
+ */
+public class EtcdNodeAttributes {
+
+    /** the key holding the attributes in the instance directory */
+    public static final String KEY = "attributes";
+
+    private final boolean master;
+
+    private final boolean data;
+
+    private final String zone;
+
+    public EtcdNodeAttributes(boolean master, boolean data, String zone) {
+        this.master = master;
+        this.data = data;
+        this.zone = zone;
+    }
+
+    /**
+     * @return the attributes of the local node, the zone being <tt>cloud.etcd.zone</tt> or the <tt>node.zone</tt> attribute.
+     * As for a {@link org.elasticsearch.cluster.node.DiscoveryNode}, a client node is neither master nor data unless
+     * set explicitly.
+     */
+    public static EtcdNodeAttributes local(Settings settings) {
+        String zone = settings.get("cloud.etcd.zone", settings.get("node.zone"));
+        boolean client = settings.getAsBoolean("node.client", false);
+        return new EtcdNodeAttributes(settings.getAsBoolean("node.master", !client), settings.getAsBoolean("node.data", !client), zone);
+    }
+
+    /**
+     * @return the parsed attributes, unknown ones are ignored and missing roles default to <tt>true</tt> as in
+     * elasticsearch, <tt>null</tt> for a <tt>null</tt> value
+     */
+    public static EtcdNodeAttributes parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        boolean master = true;
+        boolean data = true;
+        String zone = null;
+        for (String attribute : Strings.tokenizeToStringArray(value, ",")) {
+            int eq = attribute.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String name = attribute.substring(0, eq).trim();
+            String attributeValue = attribute.substring(eq + 1).trim();
+            if ("master".equals(name)) {
+                master = Boolean.parseBoolean(attributeValue);
+            } else if ("data".equals(name)) {
+                data = Boolean.parseBoolean(attributeValue);
+            } else if ("zone".equals(name) && !attributeValue.isEmpty()) {
+                zone = attributeValue;
+            }
+        }
+        return new EtcdNodeAttributes(master, data, zone);
+    }
+
+    public boolean master() {
+        return master;
+    }
+
+    public boolean data() {
+        return data;
+    }
+
+    public String zone() {
+        return zone;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        EtcdNodeAttributes that = (EtcdNodeAttributes) o;
+        return master == that.master && data == that.data && (zone == null ? that.zone == null : zone.equals(that.zone));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = master ? 1 : 0;
+        result = 31 * result + (data ? 1 : 0);
+        result = 31 * result + (zone == null ? 0 : zone.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "master=" + master + ",data=" + data + (zone == null ? "" : ",zone=" + zone);
+    }
+}
@@ -0,0 +1,69 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the registered instances to ping, from the roles they registered. Master-eligible nodes of the local zone come
+ * first, then the other master-eligible nodes, the other nodes of the local zone and the rest. An instance without
+ * registered roles counts as master-eligible, as nodes are by default.
+ * <p/>
+ * With <tt>cloud.etcd.discovery.master_only</tt> only the master-eligible instances are kept, and
+ * <tt>cloud.etcd.discovery.max_nodes</tt> caps how many instances besides this node are pinged. With neither set,
+ * the members are returned as they are.
+ */
+public class EtcdNodeSelector {
+
+    private final String localInstance;
+
+    private final String localZone;
+
+    private final boolean masterOnly;
+
+    private final int maxNodes;
+
+    public EtcdNodeSelector(Settings settings, String localInstance) {
+        this.localInstance = localInstance;
+        this.localZone = EtcdNodeAttributes.local(settings).zone();
+        this.masterOnly = settings.getAsBoolean("cloud.etcd.discovery.master_only", false);
+        this.maxNodes = settings.getAsInt("cloud.etcd.discovery.max_nodes", 0);
+    }
+
+    public Map<String, String> select(Map<String, String> members, Map<String, EtcdNodeAttributes> attributes) {
+        if (!masterOnly && maxNodes <= 0) {
+            return members;
+        }
+        List<List<Map.Entry<String, String>>> ranks = new ArrayList<>(4);
+        for (int i = 0; i < 4; i++) {
+            ranks.add(new ArrayList<Map.Entry<String, String>>());
+        }
+        Map<String, String> selected = new LinkedHashMap<>();
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            if (member.getKey().equals(localInstance)) {
+                selected.put(member.getKey(), member.getValue());
+                continue;
+            }
+            EtcdNodeAttributes roles = attributes.get(member.getKey());
+            boolean master = roles == null || roles.master();
+            if (masterOnly && !master) {
+                continue;
+            }
+            boolean sameZone = localZone != null && roles != null && localZone.equals(roles.zone());
+            ranks.get((master ? 0 : 2) + (sameZone ? 0 : 1)).add(member);
+        }
+        int remaining = maxNodes > 0 ? maxNodes : Integer.MAX_VALUE;
+        for (List<Map.Entry<String, String>> rank : ranks) {
+            for (Map.Entry<String, String> member : rank) {
+                if (remaining-- <= 0) {
+                    return selected;
+                }
+                selected.put(member.getKey(), member.getValue());
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,57 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * A token bucket bounding the requests a node sends to etcd: <tt>cloud.etcd.limit.&lt;reads|writes&gt;_per_second</tt>
+ * tokens are added every second, up to <tt>cloud.etcd.limit.&lt;read|write&gt;_burst</tt>. Acquiring never blocks,
+ * a caller without a token serves its last result instead. A rate of <tt>0</tt> disables the limit.
+ */
+public class EtcdRateLimiter {
+
+    private final double tokensPerNano;
+
+    private final double burst;
+
+    private double tokens;
+
+    private long refilledNanos;
+
+    public EtcdRateLimiter(double perSecond, int burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledNanos = System.nanoTime();
+    }
+
+    public static EtcdRateLimiter reads(Settings settings) {
+        return fromSettings(settings, "reads_per_second", 50, "read_burst", 100);
+    }
+
+    public static EtcdRateLimiter writes(Settings settings) {
+        return fromSettings(settings, "writes_per_second", 20, "write_burst", 40);
+    }
+
+    private static EtcdRateLimiter fromSettings(Settings settings, String rateSetting, double defaultRate, String burstSetting,
+                                                int defaultBurst) {
+        double perSecond = settings.getAsDouble("cloud.etcd.limit." + rateSetting, defaultRate);
+        return new EtcdRateLimiter(perSecond, settings.getAsInt("cloud.etcd.limit." + burstSetting, defaultBurst));
+    }
+
+    /**
+     * @return <tt>true</tt> if a token was available and has been taken
+     */
+    public synchronized boolean tryAcquire() {
+        if (tokensPerNano <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledNanos) * tokensPerNano);
+        refilledNanos = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -11,4 +11,6 @@ public class EtcdResult {
     public String message;
     public String cause;
     public int index;
+    /** value of the X-Etcd-Index response header, the index to watch from */
+    public long etcdIndex;
 }
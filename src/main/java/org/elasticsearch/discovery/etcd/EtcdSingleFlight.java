@@ -0,0 +1,95 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares a read between the concurrent callers asking for the same key: the first one sends the request, the others
+ * wait for its result. A result is also reused for the freshness window after the request was sent. The results are
+ * shared, so callers must not modify them.
+ */
+public class EtcdSingleFlight<V> {
+
+    private final long freshnessNanos;
+
+    private final EtcdStats stats;
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<String, Result<V>> recent = ConcurrentCollections.newConcurrentMap();
+
+    public EtcdSingleFlight(TimeValue freshness, EtcdStats stats) {
+        this.freshnessNanos = freshness.nanos();
+        this.stats = stats;
+    }
+
+    public V execute(String key, Callable<V> request) {
+        if (freshnessNanos > 0) {
+            Result<V> result = recent.get(key);
+            if (result != null && System.nanoTime() - result.startedNanos <= freshnessNanos) {
+                stats.onFreshHit();
+                return result.value;
+            }
+        }
+        FutureTask<V> task = new FutureTask<>(request);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            stats.onCoalesced();
+            return get(existing);
+        }
+        long startedNanos = System.nanoTime();
+        try {
+            task.run();
+            V value = get(task);
+            if (freshnessNanos > 0 && value != null) {
+                recent.put(key, new Result<>(value, startedNanos));
+            }
+            return value;
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    private V get(FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // the request is shared, so waiting is not given up for a single caller
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ElasticsearchException(cause.getMessage(), cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Result<V> {
+        final V value;
+        final long startedNanos;
+
+        Result(V value, long startedNanos) {
+            this.value = value;
+            this.startedNanos = startedNanos;
+        }
+    }
+}
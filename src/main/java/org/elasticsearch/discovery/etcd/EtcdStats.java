@@ -0,0 +1,268 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the etcd calls and discovery rounds of this node. Recording only updates atomic counters, so it is
+ * lock-free and does not allocate.
+ */
+public class EtcdStats implements ToXContent {
+
+    public enum Operation {
+        QUERY, UPDATE, WATCH
+    }
+
+    /** status recorded for the failures without an HTTP status, such as a refused connection */
+    public static final int NO_STATUS = 0;
+
+    private static final int MAX_STATUS = 600;
+
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+
+    private final AtomicLongArray errors = new AtomicLongArray(MAX_STATUS);
+
+    private final CounterMetric bytesRead = new CounterMetric();
+
+    private final MeanMetric parseTime = new MeanMetric();
+
+    private final CounterMetric rounds = new CounterMetric();
+
+    private final CounterMetric coalesced = new CounterMetric();
+
+    private final CounterMetric freshHits = new CounterMetric();
+
+    private final CounterMetric nodesDiscovered = new CounterMetric();
+
+    private final CounterMetric deadlineExceeded = new CounterMetric();
+
+    private final CounterMetric throttledReads = new CounterMetric();
+
+    private final CounterMetric throttledWrites = new CounterMetric();
+
+    private volatile int lastRoundNodes;
+
+    private volatile long lastRegistrationMillis;
+
+    public EtcdStats() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    public void onSuccess(Operation operation, long tookNanos) {
+        latencies[operation.ordinal()].record(tookNanos);
+    }
+
+    /**
+     * @param status the HTTP status of the failed request, {@link #NO_STATUS} if there was none
+     */
+    public void onError(int status) {
+        errors.incrementAndGet(status > 0 && status < MAX_STATUS ? status : NO_STATUS);
+    }
+
+    public void onBytesRead(long bytes) {
+        bytesRead.inc(bytes);
+    }
+
+    public void onParsed(long tookNanos) {
+        parseTime.inc(tookNanos);
+    }
+
+    /**
+     * A read that waited for the same read of another caller instead of sending its own request.
+     */
+    public void onCoalesced() {
+        coalesced.inc();
+    }
+
+    /**
+     * A read served by a result fetched within the freshness window.
+     */
+    public void onFreshHit() {
+        freshHits.inc();
+    }
+
+    public void onRound(int nodes) {
+        rounds.inc();
+        nodesDiscovered.inc(nodes);
+        lastRoundNodes = nodes;
+    }
+
+    /**
+     * A request not sent because its budget was exhausted, its last result being served instead.
+     */
+    public void onThrottled(boolean write) {
+        (write ? throttledWrites : throttledReads).inc();
+    }
+
+    /**
+     * A round that did not complete within its deadline and served the nodes of the last completed one.
+     */
+    public void onDeadlineExceeded() {
+        deadlineExceeded.inc();
+    }
+
+    public void onRegistered() {
+        lastRegistrationMillis = System.currentTimeMillis();
+    }
+
+    public Histogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long errors(int status) {
+        return errors.get(status);
+    }
+
+    public long bytesRead() {
+        return bytesRead.count();
+    }
+
+    public long rounds() {
+        return rounds.count();
+    }
+
+    public long throttledReads() {
+        return throttledReads.count();
+    }
+
+    public long throttledWrites() {
+        return throttledWrites.count();
+    }
+
+    public long deadlineExceeded() {
+        return deadlineExceeded.count();
+    }
+
+    public long coalesced() {
+        return coalesced.count();
+    }
+
+    public long freshHits() {
+        return freshHits.count();
+    }
+
+    /**
+     * @return the time elapsed since the last successful registration, -1 if there has been none
+     */
+    public long timeSinceLastRegistrationMillis() {
+        long last = lastRegistrationMillis;
+        return last == 0 ? -1 : System.currentTimeMillis() - last;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("operations");
+        for (Operation operation : Operation.values()) {
+            builder.field(operation.name().toLowerCase(Locale.ROOT));
+            latencies[operation.ordinal()].toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.startObject("errors");
+        for (int status = 0; status < MAX_STATUS; status++) {
+            long count = errors.get(status);
+            if (count > 0) {
+                builder.field(status == NO_STATUS ? "no_status" : String.valueOf(status), count);
+            }
+        }
+        builder.endObject();
+        builder.byteSizeField(Fields.BYTES_READ_IN_BYTES, Fields.BYTES_READ, bytesRead.count());
+        builder.startObject("parse");
+        builder.field("count", parseTime.count());
+        builder.timeValueField(Fields.TIME_IN_MILLIS, Fields.TIME, TimeUnit.NANOSECONDS.toMillis(parseTime.sum()));
+        builder.endObject();
+        builder.startObject("reads");
+        builder.field("coalesced", coalesced.count());
+        builder.field("fresh_hits", freshHits.count());
+        builder.endObject();
+        builder.startObject("throttled");
+        builder.field("reads", throttledReads.count());
+        builder.field("writes", throttledWrites.count());
+        builder.endObject();
+        builder.startObject("rounds");
+        builder.field("count", rounds.count());
+        builder.field("nodes_discovered", nodesDiscovered.count());
+        builder.field("last_nodes", lastRoundNodes);
+        builder.field("deadline_exceeded", deadlineExceeded.count());
+        builder.endObject();
+        builder.startObject("registration");
+        long timeSince = timeSinceLastRegistrationMillis();
+        if (timeSince >= 0) {
+            builder.timeValueField(Fields.TIME_SINCE_LAST_IN_MILLIS, Fields.TIME_SINCE_LAST, timeSince);
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    static final class Fields {
+        static final XContentBuilderString BYTES_READ = new XContentBuilderString("bytes_read");
+        static final XContentBuilderString BYTES_READ_IN_BYTES = new XContentBuilderString("bytes_read_in_bytes");
+        static final XContentBuilderString TIME = new XContentBuilderString("time");
+        static final XContentBuilderString TIME_IN_MILLIS = new XContentBuilderString("time_in_millis");
+        static final XContentBuilderString TIME_SINCE_LAST = new XContentBuilderString("time_since_last");
+        static final XContentBuilderString TIME_SINCE_LAST_IN_MILLIS = new XContentBuilderString("time_since_last_in_millis");
+    }
+
+    /**
+     * Request latencies in fixed buckets, from 1ms up to 1 minute and above.
+     */
+    public static class Histogram implements ToXContent {
+
+        /** upper bounds of the buckets, the last bucket has no bound */
+        static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+                BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BOUNDS_MILLIS[i]);
+            }
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+        private final MeanMetric total = new MeanMetric();
+
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            total.inc(nanos);
+        }
+
+        public long count() {
+            return total.count();
+        }
+
+        public long bucket(int index) {
+            return buckets.get(index);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", total.count());
+            builder.timeValueField(Fields.TIME_IN_MILLIS, Fields.TIME, TimeUnit.NANOSECONDS.toMillis(total.sum()));
+            builder.startObject("histogram");
+            for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+                builder.field("le_" + new TimeValue(BOUNDS_MILLIS[i]), buckets.get(i));
+            }
+            builder.field("gt_" + new TimeValue(BOUNDS_MILLIS[BOUNDS_MILLIS.length - 1]), buckets.get(BOUNDS_MILLIS.length));
+            builder.endObject();
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * The operations discovery needs from etcd, whatever the API version used to store the registrations.
+ */
+public interface EtcdStore extends Closeable {
+
+    /**
+     * @return the key under which every instance is registered
+     */
+    String getEtcdKey();
+
+    List<EtcdEndpoint> endpoints();
+
+    /**
+     * @return the counters of the calls made to etcd, shared with the discovery rounds
+     */
+    EtcdStats stats();
+
+    /**
+     * Creates or refreshes the registration of this node. Called on every heartbeat, so it should be as cheap as the
+     * API allows once the registration exists.
+     *
+     * @param instanceKeys the keys to register this node under, relative to the service key
+     * @param attributes the roles to register next to the transport address, which requires the
+     *                   <tt>&lt;instance&gt;/transport</tt> layout, <tt>null</tt> to only register the address
+     * @return <tt>true</tt> if etcd accepted the registration
+     */
+    boolean register(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes);
+
+    /**
+     * Deletes the registration of this node if it still holds the given value, so that a node that took over the
+     * instance key is left alone. Peers watching the key drop the node at once instead of when the TTL runs out.
+     *
+     * @return <tt>true</tt> if the registration has been deleted
+     */
+    boolean deregister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes);
+
+    /**
+     * Writes a key of the plugin itself, such as the master hint, with the lifetime of the registration of this node.
+     * As with {@link #register}, writing an unchanged value again should only keep it alive.
+     *
+     * @param key a key relative to the service key, starting with <tt>_</tt> so it is never read as an instance
+     * @return <tt>true</tt> if etcd accepted the value, <tt>false</tt> as well when it was not sent because the write
+     * budget of the node is exhausted
+     */
+    boolean publish(String key, String value);
+
+    /**
+     * @param key a key relative to the service key
+     * @return the value of the key, <tt>null</tt> if it does not exist
+     */
+    String get(String key);
+
+    /**
+     * Reads every registered instance, with the index to watch from.
+     */
+    EtcdListing listMembers(String etcdTransportkey);
+
+    /**
+     * Reads the instances registered under a sub key of the service key, such as a zone.
+     *
+     * @param subKey the key to read relative to the service key, <tt>null</tt> for the service key itself
+     * @param depth  the number of directory levels from the read key down to the instances, 2 to read every zone
+     */
+    EtcdListing listMembers(String subKey, String etcdTransportkey, int depth);
+
+    /**
+     * Reads the instances of every cluster registered one level below the service key, with ids qualified by the key
+     * of their cluster, <tt>&lt;cluster&gt;/&lt;instance&gt;</tt>.
+     */
+    EtcdListing listClusters(String etcdTransportkey);
+
+    /**
+     * Waits for the changes under the service key at or after the given index, expressed as v2 style events
+     * (<tt>set</tt> or <tt>delete</tt> actions). A single event with an errorCode of 401 means the index has been
+     * compacted away and the caller has to read everything again.
+     */
+    List<EtcdResult> watch(long waitIndex);
+
+    /**
+     * Aborts the reads in flight, such as a listing past the deadline of its round, so that they release their
+     * connection and their callers fail at once instead of when etcd answers.
+     */
+    void abortReads();
+
+    /**
+     * Closes the pooled connections that have been idle for longer than the given time.
+     */
+    void evictIdleConnections(TimeValue idleTimeout);
+
+    @Override
+    void close();
+}
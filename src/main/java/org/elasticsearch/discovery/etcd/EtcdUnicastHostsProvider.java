@@ -16,25 +16,35 @@
  */
 package org.elasticsearch.discovery.etcd;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.Version;
+import org.elasticsearch.cloud.etcd.EtcdService;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.component.LifecycleListener;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.discovery.zen.ping.unicast.UnicastHostsProvider;
 import org.elasticsearch.discovery.zen.ping.unicast.UnicastZenPing;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.Transport;
 import org.elasticsearch.transport.TransportService;
-import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.elasticsearch.common.inject.Inject;
 
 public class EtcdUnicastHostsProvider extends AbstractComponent implements UnicastHostsProvider {
 
     private TransportService transportService;
 
-    private EtcdClient etcdClient;
+    private EtcdStore etcdStore;
 
     private String etcdInstanceKey;
 
@@ -42,35 +52,139 @@ public class EtcdUnicastHostsProvider extends AbstractComponent implements Unica
 
     private int etcdInterval = 5;
 
+    private TimeValue maxPeerWait;
+
+    private boolean singleNodeBootstrap;
+
+    private EtcdHeartbeat heartbeat;
+
+    private EtcdMembershipWatcher membershipWatcher;
+
+    private volatile CachedNodes cachedNodes;
+
+    private EtcdAddressResolver addressResolver;
+
+    /** the nodes of the previous round by node id, reused while their address does not change */
+    private volatile Map<String, DiscoveryNode> knownNodes = Collections.emptyMap();
+
+    private EtcdMembershipFile membershipFile;
+
+    private volatile EtcdListing persistedMembers;
+
+    private final EtcdNodeSelector nodeSelector;
+
+    private final EtcdBackoff peerBackoff;
+
+    private final EtcdLayout layout;
+
+    private final boolean deregisterOnStop;
+
+    private EtcdLivenessProbe livenessProbe;
+
+    private final ThreadPool threadPool;
+
+    /** the key of the master hint, <tt>null</tt> if it is not read */
+    private final String masterHintKey;
+
+    private final boolean masterHintOnly;
+
+    /** the clusters read along with this one, <tt>null</tt> if the node only reads its own cluster */
+    private EtcdClusterDirectory clusterDirectory;
+
+    /** the id of this cluster in the instance ids of the directory */
+    private String clusterId;
+
+    private final TimeValue roundDeadline;
+
+    /** the nodes of the last read that completed, served when a read misses its deadline */
+    private volatile List<DiscoveryNode> lastGoodNodes = Collections.emptyList();
+
     @Inject
-    public EtcdUnicastHostsProvider(Settings settings, TransportService transportService, Transport transport) {
+    public EtcdUnicastHostsProvider(Settings settings, TransportService transportService, Transport transport, ThreadPool threadPool,
+                                    EtcdService etcdService, NodeEnvironment nodeEnvironment) {
         super(settings);
         this.transportService = transportService;
-        String etcdHost;
-        String etcdKey;
-        if (System.getenv().containsKey("ETCDCTL_PEERS")) {
-            etcdHost = System.getenv().get("ETCDCTL_PEERS");
-        } else {
-            etcdHost = settings.get("cloud.etcd.host", "127.0.0.1:4001");
-        }
-        etcdKey = settings.get("cloud.etcd.key", "/services/elasticsearch");
+        this.threadPool = threadPool;
         etcdInstanceKey = settings.get("cloud.etcd.instance.key", String.valueOf(System.currentTimeMillis()));
         etcdTransportkey = settings.get("cloud.etcd.transport.key", "transport");
-        try {
-            etcdInterval = Integer.parseInt(settings.get("cloud.etcd.interval", "5"));
-        } catch (Throwable ignored) {}
-        etcdClient = new EtcdClient(logger, etcdHost, etcdKey, etcdInterval);
+        etcdInterval = etcdService.interval();
+        etcdStore = etcdService.store();
+        addressResolver = new EtcdAddressResolver(logger, settings, transportService);
+        maxPeerWait = settings.getAsTime("cloud.etcd.peer.max_wait", TimeValue.timeValueSeconds(30));
+        singleNodeBootstrap = settings.getAsBoolean("cloud.etcd.bootstrap.single_node", false);
+        TimeValue heartbeatInterval = settings.getAsTime("cloud.etcd.heartbeat.interval", TimeValue.timeValueMillis(etcdInterval * 1000 / 2));
+        EtcdNodeAttributes attributes = settings.getAsBoolean("cloud.etcd.register.attributes", false) ? EtcdNodeAttributes.local(settings) : null;
+        layout = EtcdLayout.fromSettings(settings);
+        deregisterOnStop = settings.getAsBoolean("cloud.etcd.deregister_on_stop", true);
+        roundDeadline = settings.getAsTime("cloud.etcd.round.deadline", TimeValue.timeValueSeconds(5));
+        masterHintKey = EtcdClusterDirectory.masterHintKey(settings);
+        masterHintOnly = settings.getAsBoolean("cloud.etcd.master_hint.only", false);
+        if (settings.getAsBoolean("cloud.etcd.probe.enabled", false)) {
+            livenessProbe = new EtcdLivenessProbe(logger, settings);
+        }
+        // a refresh is retried in time to complete before the TTL, 1.2 × the interval rounded up, expires
+        long ttlMillis = (etcdInterval * 12 + 9) / 10 * 1000L;
+        TimeValue requestTimeout = settings.getAsTime("cloud.etcd.read_timeout", AbstractEtcdClient.DEFAULT_READ_TIMEOUT);
+        heartbeat = new EtcdHeartbeat(logger, threadPool, transportService, etcdStore, layout.instanceKeys(etcdInstanceKey), etcdTransportkey,
+                attributes, heartbeatInterval, new EtcdBackoff(settings), TimeValue.timeValueMillis(ttlMillis - requestTimeout.millis()));
+        peerBackoff = new EtcdBackoff(settings);
+        nodeSelector = new EtcdNodeSelector(settings, etcdInstanceKey);
+        if (!EtcdClusterDirectory.clusterKeys(settings).isEmpty()) {
+            if (layout.zoned()) {
+                throw new ElasticsearchIllegalArgumentException("cloud.etcd.clusters requires the flat cloud.etcd.layout");
+            }
+            String parentKey = EtcdClusterDirectory.parentKey(settings, etcdStore.getEtcdKey());
+            clusterId = EtcdClusterDirectory.clusterId(etcdStore.getEtcdKey());
+            clusterDirectory = EtcdClusterDirectory.acquire(logger, settings, etcdService, parentKey, etcdTransportkey);
+            membershipWatcher = clusterDirectory.watcher();
+        } else if (settings.getAsBoolean("cloud.etcd.watch.enabled", true)) {
+            membershipWatcher = new EtcdMembershipWatcher(logger, etcdStore, etcdTransportkey, etcdInterval,
+                    EsExecutors.daemonThreadFactory(settings, "etcd_watcher"), new EtcdBackoff(settings), layout, etcdInstanceKey,
+                    masterHintKey == null ? Collections.<String>emptyList() : Collections.singletonList(masterHintKey));
+        }
+        if (settings.getAsBoolean("cloud.etcd.snapshot.enabled", true) && nodeEnvironment.hasNodeFile()) {
+            membershipFile = new EtcdMembershipFile(logger, nodeEnvironment.nodeDataLocations()[0]);
+            persistedMembers = membershipFile.load();
+            if (persistedMembers != null) {
+                logger.debug("loaded etcd membership persisted at index [{}]: {}", persistedMembers.etcdIndex, persistedMembers.members);
+            }
+        }
+        etcdService.addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void beforeStop() {
+                if (deregisterOnStop) {
+                    heartbeat.deregister();
+                } else {
+                    heartbeat.stop();
+                }
+                if (membershipWatcher != null && clusterDirectory == null) {
+                    membershipWatcher.stop();
+                }
+            }
 
+            @Override
+            public void afterClose() {
+                addressResolver.close();
+                if (clusterDirectory != null) {
+                    // the shared watch only stops with the last node of the directory
+                    clusterDirectory.release();
+                }
+            }
+        });
     }
 
     @Override
     public List<DiscoveryNode> buildDynamicNodes() {
         List<DiscoveryNode> nodes = new ArrayList<>();
+        heartbeat.start();
         try {
+            long deadline = System.currentTimeMillis() + maxPeerWait.millis();
+            EtcdMembershipWatcher.Snapshot seen;
             do {
-                notifyPeer();
-                nodes = discoveryNodes();
-            } while(waitForPeer(nodes));
+                seen = membershipWatcher == null ? null : membershipWatcher.snapshot();
+                nodes = readNodes();
+            } while(waitForPeer(nodes, seen, deadline));
+            etcdStore.stats().onRound(nodes.size());
             return nodes;
         } catch (Exception e) {
             logger.error("etcdService error :" + e.getMessage());
@@ -79,73 +193,260 @@ public class EtcdUnicastHostsProvider extends AbstractComponent implements Unica
         }
     }
 
-    private void notifyPeer() throws Exception {
-        String value = "";
-        TransportAddress transportAddress = transportService.boundAddress().publishAddress();
-        if(transportAddress instanceof InetSocketTransportAddress) {
-            InetSocketAddress publishAddress = ((InetSocketTransportAddress)transportAddress).address();
-            value = publishAddress.getHostString() + ":" + publishAddress.getPort();
-        }
-        if(!"".equals(value) ){
-            EtcdResult etcdResult = etcdClient.queryEtcdKeys(etcdInstanceKey);
-            String content;
-            if(etcdResult != null && etcdResult.node != null && etcdResult.node.dir) {
-                content = etcdClient.updateEtcdkeys(etcdInstanceKey + "/" + etcdTransportkey , value);
-            } else {
-                content = etcdClient.updateEtcdkeys(etcdInstanceKey, value);
-            }
-            logger.debug("update etcd: " + content);
-        }
-    }
-
-    private boolean waitForPeer(List<DiscoveryNode> nodes) throws InterruptedException {
+    /**
+     * Waits for a change of the membership while no other node is registered, up to <tt>cloud.etcd.peer.max_wait</tt>
+     * so that a node left alone can still elect itself. With <tt>cloud.etcd.bootstrap.single_node</tt> it does not wait.
+     *
+     * @return <tt>true</tt> if the nodes should be read again
+     */
+    private boolean waitForPeer(List<DiscoveryNode> nodes, EtcdMembershipWatcher.Snapshot seen, long deadline) throws InterruptedException {
         boolean peerAbsent = true;
         for(DiscoveryNode node: nodes){
             if(!transportService.boundAddress().publishAddress().equals(node.address())){
                 peerAbsent = false;
             }
         }
-        if(peerAbsent){
-            logger.warn("Waiting " + etcdInterval + "s for peer ...");
-            Thread.sleep(etcdInterval * 1000);
+        if (!peerAbsent || singleNodeBootstrap) {
+            return false;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            logger.warn("no peer registered in etcd after {}, continuing alone", maxPeerWait);
+            return false;
+        }
+        logger.info("Waiting up to {}ms for peer ...", remaining);
+        if (membershipWatcher != null) {
+            // woken up by the watch as soon as another instance registers
+            membershipWatcher.awaitChange(seen, remaining);
+        } else {
+            Thread.sleep(Math.min(peerBackoff.delayMillis(etcdInterval * 1000L), remaining));
+        }
+        return true;
+    }
+
+    /**
+     * Reads the nodes on the generic thread pool and waits for them at most <tt>cloud.etcd.round.deadline</tt>. A read
+     * that misses the deadline is cancelled, its requests aborted so that they release their connection, and the nodes
+     * of the last completed read are returned instead, or before any read completed the persisted membership.
+     */
+    private List<DiscoveryNode> readNodes() throws Exception {
+        if (roundDeadline.millis() <= 0) {
+            return doReadNodes();
+        }
+        FutureTask<List<DiscoveryNode>> read = new FutureTask<>(new Callable<List<DiscoveryNode>>() {
+            @Override
+            public List<DiscoveryNode> call() throws Exception {
+                return doReadNodes();
+            }
+        });
+        threadPool.generic().execute(read);
+        try {
+            return read.get(roundDeadline.millis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            read.cancel(true);
+            etcdStore.abortReads();
+            etcdStore.stats().onDeadlineExceeded();
+            List<DiscoveryNode> last = lastGoodNodes;
+            EtcdListing persisted = persistedMembers;
+            if (last.isEmpty() && persisted != null) {
+                last = toDiscoveryNodes(persisted.members, persisted.attributes);
+            }
+            logger.warn("etcd discovery did not complete within {}, serving the {} nodes of the last completed round", roundDeadline, last.size());
+            return last;
+        } catch (InterruptedException e) {
+            read.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
-        return peerAbsent;
     }
 
-    private List<DiscoveryNode> createDiscoveryNode(String address,String id) throws Exception {
+    private List<DiscoveryNode> doReadNodes() throws Exception {
+        List<DiscoveryNode> nodes = cachedDiscoveryNodes();
+        nodes = withMasterHint(nodes, masterHint());
+        if (livenessProbe != null) {
+            nodes = livenessProbe.filter(nodes, transportService.boundAddress().publishAddress());
+        }
+        lastGoodNodes = nodes;
+        return nodes;
+    }
+
+    /**
+     * @return the master hint of the cluster of this node, from the snapshot of the watch once it is synced, otherwise
+     * read from etcd, <tt>null</tt> if there is none
+     */
+    private EtcdMasterHint masterHint() {
+        if (masterHintKey == null) {
+            return null;
+        }
+        EtcdMembershipWatcher.Snapshot snapshot = membershipWatcher == null ? null : membershipWatcher.snapshot();
+        if (snapshot != null) {
+            return EtcdMasterHint.parse(snapshot.hints.get(clusterDirectory == null ? masterHintKey : clusterId + "/" + masterHintKey));
+        }
+        try {
+            return EtcdMasterHint.parse(etcdStore.get(masterHintKey));
+        } catch (Exception e) {
+            logger.debug("failed to read the master hint: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Puts the node published as the master hint first, so that it answers the first ping, or only returns it with
+     * <tt>cloud.etcd.master_hint.only</tt>. The nodes are returned unchanged when there is no hint, this node is the
+     * master, or the hinted address is not among the nodes, as a stale hint left by a stopped master would be.
+     */
+    private List<DiscoveryNode> withMasterHint(List<DiscoveryNode> nodes, EtcdMasterHint hint) {
+        if (hint == null) {
+            return nodes;
+        }
+        TransportAddress[] addresses = addressResolver.resolve(Collections.singletonList(hint.address())).get(hint.address());
+        if (addresses == null || addresses.length == 0 || transportService.boundAddress().publishAddress().equals(addresses[0])) {
+            return nodes;
+        }
+        DiscoveryNode master = null;
+        List<DiscoveryNode> ordered = new ArrayList<>(nodes.size());
+        for (DiscoveryNode node : nodes) {
+            if (master == null && node.address().equals(addresses[0])) {
+                master = node;
+            } else {
+                ordered.add(node);
+            }
+        }
+        if (master == null) {
+            return nodes;
+        }
+        logger.trace("pinging the master hint {} first", hint);
+        if (masterHintOnly) {
+            return Collections.singletonList(master);
+        }
+        ordered.add(0, master);
+        return ordered;
+    }
+
+    private List<DiscoveryNode> createDiscoveryNode(TransportAddress[] addresses, String id, Map<String, DiscoveryNode> previous,
+                                                    Map<String, DiscoveryNode> known) {
         List<DiscoveryNode> nodes = new ArrayList<>();
-        TransportAddress[] addresses = transportService.addressesFromString(address);
         for (int i = 0; (i < addresses.length && i < UnicastZenPing.LIMIT_PORTS_COUNT); i++) {
-            logger.trace("adding {}, transport_address {}", address, addresses[i]);
-            nodes.add(new DiscoveryNode("#cloud-" + id + "-" + i, addresses[i], Version.CURRENT));
+            String nodeId = "#cloud-" + id + "-" + i;
+            DiscoveryNode node = previous.get(nodeId);
+            if (node == null || !node.address().equals(addresses[i])) {
+                logger.trace("adding {}, transport_address {}", id, addresses[i]);
+                node = new DiscoveryNode(nodeId, addresses[i], Version.CURRENT);
+            }
+            known.put(nodeId, node);
+            nodes.add(node);
         }
         return nodes;
     }
 
+    /**
+     * Serves the nodes from the membership kept up to date by the watcher, only converting it again when it changed.
+     * Until the watcher has completed its first sync, the persisted membership is served if there is one, otherwise
+     * etcd is read directly.
+     */
+    private List<DiscoveryNode> cachedDiscoveryNodes() throws Exception {
+        if (membershipWatcher == null) {
+            return discoveryNodes();
+        }
+        membershipWatcher.start();
+        EtcdMembershipWatcher.Snapshot snapshot = membershipWatcher.snapshot();
+        if (snapshot == null) {
+            EtcdListing persisted = persistedMembers;
+            if (persisted != null) {
+                logger.debug("serving the persisted etcd membership until the watch is synced");
+                return toDiscoveryNodes(persisted.members, persisted.attributes);
+            }
+            return discoveryNodes();
+        }
+        CachedNodes cached = cachedNodes;
+        if (cached == null || cached.version != snapshot.version) {
+            Map<String, String> members = ownCluster(snapshot.members);
+            Map<String, EtcdNodeAttributes> attributes = ownCluster(snapshot.attributes);
+            cached = new CachedNodes(snapshot.version, Collections.unmodifiableList(toDiscoveryNodes(members, attributes)));
+            cachedNodes = cached;
+            persist(snapshot.etcdIndex, members, attributes);
+        }
+        return cached.nodes;
+    }
+
+    /**
+     * Reads the membership from etcd, or serves the persisted one if etcd cannot be reached.
+     */
     public List<DiscoveryNode> discoveryNodes() throws Exception {
         List<DiscoveryNode> locations = new ArrayList<>();
-        EtcdResult result = etcdClient.queryEtcdKeys("");
-        if(result != null) {
-            if (result.node != null && result.node.nodes != null && !result.node.nodes.isEmpty()) {
-                for (EtcdNode node : result.node.nodes) {
-                    String serviceKey = node.key;
-                    String id = serviceKey.substring(serviceKey.lastIndexOf("/") + 1);
-                    if (node.dir && node.nodes != null) {
-                        for (EtcdNode subnode : node.nodes) {
-                            if ((serviceKey + "/" + etcdTransportkey).equals(subnode.key) && subnode.value != null && !subnode.value.isEmpty()) {
-                                locations.addAll(createDiscoveryNode(subnode.value, id));
-                            }
-                        }
-                    } else if(node.value != null){
-                        locations.addAll(createDiscoveryNode(node.value, id));
-                    }
-                }
-            } else if (result.errorCode != 0) {
-                logger.error(String.format("Error[%d] %s : %s", result.errorCode, result.message, result.cause));
+        EtcdListing listing;
+        try {
+            listing = clusterDirectory != null ? clusterDirectory.read() : layout.read(etcdStore, etcdTransportkey, etcdInstanceKey);
+        } catch (Exception e) {
+            if (persistedMembers == null) {
+                throw e;
+            }
+            logger.warn("etcd is unreachable, serving the persisted membership: {}", e.getMessage());
+            listing = null;
+        }
+        if (listing == null && persistedMembers != null) {
+            return toDiscoveryNodes(persistedMembers.members, persistedMembers.attributes);
+        }
+        if(listing != null) {
+            Map<String, String> members = ownCluster(listing.members);
+            if (!members.isEmpty()) {
+                Map<String, EtcdNodeAttributes> attributes = ownCluster(listing.attributes);
+                locations = toDiscoveryNodes(members, attributes);
+                persist(listing.etcdIndex, members, attributes);
+            } else if (listing.errorCode != 0) {
+                logger.error(String.format("Error[%d] %s : %s", listing.errorCode, listing.message, listing.cause));
             } else {
                 logger.info("Empty response from etcd");
             }
         }
         return locations;
     }
+
+    /**
+     * @return the entries of the cluster of this node, out of the entries of every cluster of the directory
+     */
+    private <V> Map<String, V> ownCluster(Map<String, V> entries) {
+        return clusterDirectory == null ? entries : EtcdClusterDirectory.cluster(entries, clusterId);
+    }
+
+    private void persist(long etcdIndex, Map<String, String> members, Map<String, EtcdNodeAttributes> attributes) {
+        if (membershipFile != null && !members.isEmpty() && membershipFile.write(etcdIndex, members, attributes)) {
+            EtcdListing persisted = new EtcdListing();
+            persisted.etcdIndex = etcdIndex;
+            persisted.members.putAll(members);
+            persisted.attributes.putAll(attributes);
+            persistedMembers = persisted;
+        }
+    }
+
+    private List<DiscoveryNode> toDiscoveryNodes(Map<String, String> registered, Map<String, EtcdNodeAttributes> attributes) throws Exception {
+        Map<String, String> members = nodeSelector.select(registered, attributes);
+        List<DiscoveryNode> locations = new ArrayList<>();
+        Map<String, TransportAddress[]> resolved = addressResolver.resolve(members.values());
+        addressResolver.retain(members.values());
+        Map<String, DiscoveryNode> previous = knownNodes;
+        Map<String, DiscoveryNode> known = new HashMap<>();
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            TransportAddress[] addresses = resolved.get(member.getValue());
+            if (addresses != null) {
+                locations.addAll(createDiscoveryNode(addresses, member.getKey(), previous, known));
+            }
+        }
+        knownNodes = known;
+        return locations;
+    }
+
+    private static class CachedNodes {
+        final long version;
+        final List<DiscoveryNode> nodes;
+
+        CachedNodes(long version, List<DiscoveryNode> nodes) {
+            this.version = version;
+            this.nodes = nodes;
+        }
+    }
 }
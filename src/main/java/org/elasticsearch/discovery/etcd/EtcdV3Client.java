@@ -0,0 +1,422 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.params.HttpConnectionParams;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the registrations through the JSON gateway of the etcd v3 API. The instance key is attached to a lease
+ * granted on the first registration, so later heartbeats only send a lease keepalive. Members are read with a single
+ * prefix range, and changes are followed with one streaming watch kept open between calls.
+ */
+public class EtcdV3Client extends AbstractEtcdClient {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String apiPrefix;
+
+    private final String servicePrefix;
+
+    private volatile long leaseId;
+
+    /** the registration attached to the current lease */
+    private volatile String registered;
+
+    /** read without the monitor, so that {@link #close()} can drop a watch blocked on the stream */
+    private volatile WatchStream watchStream;
+
+    private volatile boolean closed;
+
+    /** the lease and value each published key was last put with */
+    private final Map<String, String> published = ConcurrentCollections.newConcurrentMap();
+
+    public EtcdV3Client(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings) {
+        this(logger, etcdHosts, etcdKey, etcdInterval, settings, new EtcdStats());
+    }
+
+    public EtcdV3Client(ESLogger logger, String etcdHosts, String etcdKey, int etcdInterval, Settings settings, EtcdStats stats) {
+        super(logger, etcdHosts, etcdKey, etcdInterval, settings, stats);
+        this.apiPrefix = settings.get("cloud.etcd.v3.api_prefix", "v3");
+        String path = etcdKey.startsWith("/") ? etcdKey : "/" + etcdKey;
+        this.servicePrefix = path.endsWith("/") ? path : path + "/";
+    }
+
+    /**
+     * Only sends a keepalive for the lease once registered, the keys are written again when the lease expired or
+     * a value changed. With attributes, both <tt>&lt;instance&gt;/attributes</tt> and
+     * <tt>&lt;instance&gt;/transport</tt> are attached to the lease. Every instance key shares the same lease.
+     */
+    @Override
+    protected boolean doRegister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        String registration = instanceKeys + "|" + value + (attributes == null ? "" : "|" + attributes);
+        if (leaseId != 0) {
+            if (keepAlive(leaseId) <= 0) {
+                logger.debug("etcd lease [{}] has expired, registering again", leaseId);
+                leaseId = 0;
+            } else if (registration.equals(registered)) {
+                return true;
+            }
+        }
+        if (leaseId == 0) {
+            long granted = grant(Long.parseLong(evaluateTimeToLive()));
+            if (granted == 0) {
+                return false;
+            }
+            leaseId = granted;
+        }
+        for (String instanceKey : instanceKeys) {
+            String key = servicePrefix + instanceKey;
+            if (attributes != null) {
+                if (!put(key + "/" + EtcdNodeAttributes.KEY, attributes.toString()) || !put(key + "/" + etcdTransportkey, value)) {
+                    return false;
+                }
+            } else if (!put(key, value)) {
+                return false;
+            }
+        }
+        registered = registration;
+        return true;
+    }
+
+    /**
+     * Revokes the lease, which deletes the keys still attached to it: a key rewritten by another node is attached to
+     * the lease of that node and is left alone.
+     */
+    @Override
+    public boolean deregister(List<String> instanceKeys, String etcdTransportkey, String value, EtcdNodeAttributes attributes) {
+        long id = leaseId;
+        if (id == 0) {
+            return false;
+        }
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("ID", String.valueOf(id));
+        if (post("lease/revoke", body, false) == null) {
+            return false;
+        }
+        leaseId = 0;
+        registered = null;
+        published.clear();
+        logger.trace("update etcd: revoked lease {}", id);
+        return true;
+    }
+
+    /**
+     * Puts the key with the lease of the registration, so it is only written again when the value or the lease
+     * changed. Nothing is written before this node registered.
+     */
+    @Override
+    protected boolean doPublish(String key, String value) {
+        long id = leaseId;
+        if (id == 0) {
+            return false;
+        }
+        String publication = id + "|" + value;
+        if (publication.equals(published.get(key))) {
+            return true;
+        }
+        if (!put(servicePrefix + key, value)) {
+            return false;
+        }
+        published.put(key, publication);
+        return true;
+    }
+
+    @Override
+    protected String doGet(String key) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("key", encode(servicePrefix + key));
+        JsonNode response = post("kv/range", body, true);
+        if (response == null) {
+            return null;
+        }
+        JsonNode kv = response.path("kvs").path(0);
+        return kv.isMissingNode() ? null : decode(kv.path("value").asText());
+    }
+
+    private boolean put(String key, String value) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("key", encode(key));
+        body.put("value", encode(value));
+        body.put("lease", String.valueOf(leaseId));
+        if (post("kv/put", body, false) == null) {
+            return false;
+        }
+        logger.trace("update etcd: put {} with lease {}", key, leaseId);
+        return true;
+    }
+
+    @Override
+    protected EtcdListing doListMembers(String subKey, String etcdTransportkey, int depth, boolean qualified) {
+        String prefix = subKey == null ? servicePrefix : servicePrefix + subKey + "/";
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("key", encode(prefix));
+        body.put("range_end", encode(prefixEnd(prefix)));
+        JsonNode response = post("kv/range", body, true);
+        if (response == null) {
+            return null;
+        }
+        EtcdListing listing = new EtcdListing();
+        listing.etcdIndex = response.path("header").path("revision").asLong();
+        Map<String, String> transports = new LinkedHashMap<>();
+        Map<String, EtcdNodeAttributes> attributes = new LinkedHashMap<>();
+        for (JsonNode kv : response.path("kvs")) {
+            String key = decode(kv.path("key").asText());
+            String value = decode(kv.path("value").asText());
+            if (!key.startsWith(prefix) || value.isEmpty()) {
+                continue;
+            }
+            String[] path = key.substring(prefix.length()).split("/");
+            if (path.length < depth) {
+                continue;
+            }
+            // the levels above the instances, such as the zone, are only part of the instance id when qualified
+            String[] parts = Arrays.copyOfRange(path, depth - 1, path.length);
+            if (qualified && depth > 1) {
+                parts[0] = Strings.arrayToDelimitedString(Arrays.copyOfRange(path, 0, depth), "/");
+            }
+            if (EtcdLayout.reserved(parts[0])) {
+                continue;
+            }
+            if (parts.length == 1) {
+                listing.members.put(parts[0], value);
+            } else if (parts.length == 2 && etcdTransportkey.equals(parts[1])) {
+                transports.put(parts[0], value);
+            } else if (parts.length == 2 && EtcdNodeAttributes.KEY.equals(parts[1])) {
+                attributes.put(parts[0], EtcdNodeAttributes.parse(value));
+            }
+        }
+        listing.members.putAll(transports);
+        for (Map.Entry<String, EtcdNodeAttributes> entry : attributes.entrySet()) {
+            if (transports.containsKey(entry.getKey())) {
+                listing.attributes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return listing;
+    }
+
+    @Override
+    public List<EtcdResult> watch(final long waitIndex) {
+        WatchStream stream;
+        synchronized (this) {
+            stream = watchStream;
+            if (stream == null || stream.nextIndex != waitIndex) {
+                closeWatchStream();
+                stream = execute(EtcdStats.Operation.WATCH, new EtcdRequest<WatchStream>() {
+                    @Override
+                    public WatchStream execute(EtcdEndpoint endpoint) throws IOException {
+                        return new WatchStream(endpoint, waitIndex);
+                    }
+                });
+                watchStream = stream;
+                // closed while the stream was opened, close() could not see it
+                if (closed) {
+                    closeWatchStream();
+                    throw new IllegalStateException("etcd client closed");
+                }
+            }
+        }
+        // blocks until the next events or the watch timeout, close() disconnects the stream to interrupt it
+        try {
+            return stream.next();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (watchStream == stream) {
+                    closeWatchStream();
+                }
+            }
+            throw unchecked(e);
+        }
+    }
+
+    /**
+     * Disconnects the watch stream without waiting for the monitor, a pending {@link #watch(long)} fails at once.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        closeWatchStream();
+        super.close();
+    }
+
+    private long grant(long ttl) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("TTL", String.valueOf(ttl));
+        JsonNode response = post("lease/grant", body, false);
+        return response == null ? 0 : response.path("ID").asLong();
+    }
+
+    /**
+     * @return the remaining TTL of the lease, 0 or less if it does not exist anymore
+     */
+    private long keepAlive(long id) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("ID", String.valueOf(id));
+        JsonNode response = post("lease/keepalive", body, false);
+        if (response == null) {
+            return 0;
+        }
+        // keepalive is a stream on the gateway, its single answer is wrapped in a result
+        return response.path("result").path("TTL").asLong();
+    }
+
+    private JsonNode post(final String method, final ObjectNode body, boolean listing) {
+        EtcdRequest<JsonNode> request = new EtcdRequest<JsonNode>() {
+            @Override
+            public JsonNode execute(EtcdEndpoint endpoint) throws IOException {
+                WebResource resource = method.equals("kv/range") ? endpoint.compressed() : endpoint.resource();
+                ClientResponse response = resource.path(apiPrefix).path(method).type(MediaType.APPLICATION_JSON_TYPE)
+                        .post(ClientResponse.class, MAPPER.writeValueAsString(body));
+                try {
+                    checkAvailable(response);
+                    if (response.getStatus() != ClientResponse.Status.OK.getStatusCode()) {
+                        stats.onError(response.getStatus());
+                        logger.error(String.format("Error when calling etcd %s[%d]: %s", method, response.getStatus(), response.getClientResponseStatus()));
+                        return null;
+                    }
+                    long start = System.nanoTime();
+                    JsonNode result = MAPPER.readTree(entity(response));
+                    stats.onParsed(System.nanoTime() - start);
+                    return result;
+                } finally {
+                    release(response);
+                }
+            }
+        };
+        return listing ? read(request) : execute(EtcdStats.Operation.UPDATE, request);
+    }
+
+    private void closeWatchStream() {
+        WatchStream stream = watchStream;
+        if (stream != null) {
+            watchStream = null;
+            stream.close();
+        }
+    }
+
+    static String encode(String value) {
+        return Base64.encodeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decode(String value) {
+        if (value == null || value.isEmpty()) {
+            return "";
+        }
+        try {
+            return new String(Base64.decode(value), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid base64 value from etcd: " + value, e);
+        }
+    }
+
+    /**
+     * @return the smallest key greater than every key starting with the prefix, the range end of a prefix read
+     */
+    static String prefixEnd(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] != (byte) 0xff) {
+                bytes[i]++;
+                return new String(bytes, 0, i + 1, StandardCharsets.UTF_8);
+            }
+        }
+        return "\0";
+    }
+
+    /**
+     * A watch on the service prefix. The gateway streams one JSON message per line, so the connection is aborted
+     * rather than released to the pool once it is not needed anymore. Aborting closes the socket, which also fails a
+     * read blocked in another thread.
+     */
+    private class WatchStream {
+        private final HttpPost request;
+        private final MappingIterator<JsonNode> messages;
+        private long nextIndex;
+
+        WatchStream(EtcdEndpoint endpoint, long startRevision) throws IOException {
+            ObjectNode create = MAPPER.createObjectNode();
+            create.put("key", encode(servicePrefix));
+            create.put("range_end", encode(prefixEnd(servicePrefix)));
+            create.put("start_revision", String.valueOf(startRevision));
+            ObjectNode body = MAPPER.createObjectNode();
+            body.set("create_request", create);
+            request = new HttpPost(endpoint.url() + "/" + apiPrefix + "/watch");
+            request.setEntity(new StringEntity(MAPPER.writeValueAsString(body), MediaType.APPLICATION_JSON, "UTF-8"));
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), (int) connectTimeout.millis());
+            HttpConnectionParams.setSoTimeout(request.getParams(), (int) watchTimeout.millis());
+            HttpResponse response = httpClient().execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 500) {
+                request.abort();
+                throw new UnavailableException(status, String.format("etcd returned [%d]: %s", status, response.getStatusLine().getReasonPhrase()));
+            }
+            try {
+                messages = MAPPER.reader(JsonNode.class).readValues(countBytes(response.getEntity().getContent()));
+            } catch (IOException | RuntimeException e) {
+                request.abort();
+                throw e;
+            }
+            nextIndex = startRevision;
+        }
+
+        /**
+         * @return the events of the next message carrying any, as v2 style results
+         */
+        List<EtcdResult> next() throws IOException {
+            while (messages.hasNextValue()) {
+                JsonNode message = messages.nextValue();
+                if (message.has("error")) {
+                    throw new IOException("etcd watch failed: " + message.path("error"));
+                }
+                JsonNode result = message.path("result");
+                if (result.path("compact_revision").asLong() > 0) {
+                    EtcdResult cleared = new EtcdResult();
+                    cleared.errorCode = EtcdMembershipWatcher.EVENT_INDEX_CLEARED;
+                    cleared.message = "The event in requested index is outdated and cleared";
+                    return Collections.singletonList(cleared);
+                }
+                List<EtcdResult> events = new ArrayList<>();
+                for (JsonNode event : result.path("events")) {
+                    JsonNode kv = event.path("kv");
+                    EtcdResult converted = new EtcdResult();
+                    converted.action = "DELETE".equals(event.path("type").asText()) ? "delete" : "set";
+                    converted.node = new EtcdNode();
+                    converted.node.key = decode(kv.path("key").asText());
+                    converted.node.value = decode(kv.path("value").asText());
+                    converted.node.modifiedIndex = kv.path("mod_revision").asLong();
+                    nextIndex = converted.node.modifiedIndex + 1;
+                    events.add(converted);
+                }
+                if (!events.isEmpty()) {
+                    return events;
+                }
+            }
+            throw new IOException("etcd watch stream closed");
+        }
+
+        void close() {
+            request.abort();
+        }
+    }
+}
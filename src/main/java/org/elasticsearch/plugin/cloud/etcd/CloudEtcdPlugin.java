@@ -16,13 +16,30 @@
  */
 package org.elasticsearch.plugin.cloud.etcd;
 
+import org.elasticsearch.cloud.etcd.EtcdMasterPublisher;
+import org.elasticsearch.cloud.etcd.EtcdModule;
+import org.elasticsearch.cloud.etcd.EtcdService;
+import org.elasticsearch.cloud.etcd.RestEtcdStatsAction;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+
+import java.util.Collection;
 
 /**
  * @since TODO
  */
 public class CloudEtcdPlugin extends AbstractPlugin {
 
+    private final Settings settings;
+
+    public CloudEtcdPlugin(Settings settings) {
+        this.settings = settings;
+    }
+
     @Override
     public String name() {
         return "cloud-etcd";
@@ -33,5 +50,28 @@ public class CloudEtcdPlugin extends AbstractPlugin {
         return "Cloud Etcd plugin";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = Lists.newArrayList();
+        if (settings.getAsBoolean("cloud.enabled", true)) {
+            modules.add(EtcdModule.class);
+        }
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        Collection<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
+        if (settings.getAsBoolean("cloud.enabled", true)) {
+            services.add(EtcdService.class);
+            services.add(EtcdMasterPublisher.class);
+        }
+        return services;
+    }
 
+    public void onModule(RestModule restModule) {
+        if (settings.getAsBoolean("cloud.enabled", true)) {
+            restModule.addRestAction(RestEtcdStatsAction.class);
+        }
+    }
 }
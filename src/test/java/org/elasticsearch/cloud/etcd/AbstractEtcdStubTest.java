@@ -0,0 +1,34 @@
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.discovery.etcd.EtcdClient;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Starts the in-process etcd stand-in for each test, with a v2 client on <tt>/services/elasticsearch</tt> that fails
+ * over at once and bounds its watches to 5s.
+ */
+public abstract class AbstractEtcdStubTest {
+
+    protected EtcdStubServer server;
+
+    protected EtcdClient client;
+
+    @Before
+    public void startStubServer() throws Exception {
+        server = new EtcdStubServer().start();
+        client = new EtcdClient(Loggers.getLogger(getClass()), server.address(), "/services/elasticsearch", 1,
+                ImmutableSettings.settingsBuilder()
+                        .put("cloud.etcd.failover.backoff", "1ms")
+                        .put("cloud.etcd.watch.timeout", "5s")
+                        .build());
+    }
+
+    @After
+    public void stopStubServer() {
+        client.close();
+        server.stop();
+    }
+}
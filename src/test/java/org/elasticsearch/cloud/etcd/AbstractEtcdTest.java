@@ -24,7 +24,9 @@ import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.FailedToResolveConfigException;
 import org.elasticsearch.plugins.PluginsService;
 import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.AfterClass;
 
+import java.io.IOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
@@ -43,6 +45,30 @@ public class AbstractEtcdTest extends ElasticsearchIntegrationTest {
      */
     public static final String SYSPROP_ETCD = "test.etcd";
 
+    private static EtcdStubServer stubServer;
+
+    /**
+     * @return the in-process etcd used when no <tt>tests.config</tt> is given, started on first use
+     */
+    protected static synchronized EtcdStubServer stubServer() {
+        if (stubServer == null) {
+            try {
+                stubServer = new EtcdStubServer().start();
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to start the etcd stub server", e);
+            }
+        }
+        return stubServer;
+    }
+
+    @AfterClass
+    public static synchronized void stopStubServer() {
+        if (stubServer != null) {
+            stubServer.stop();
+            stubServer = null;
+        }
+    }
+
     @Override
     protected Settings nodeSettings(int nodeOrdinal) {
         ImmutableSettings.Builder settings = ImmutableSettings.builder()
@@ -57,7 +83,8 @@ public class AbstractEtcdTest extends ElasticsearchIntegrationTest {
             if (Strings.hasText(System.getProperty("tests.config"))) {
                 settings.loadFromUrl(environment.resolveConfig(System.getProperty("tests.config")));
             } else {
-                fail("to run integration tests, you need to set -Dtest.etcd=true and -Dtests.config=/path/to/elasticsearch.yml");
+                // no real etcd configured, run against the in-process one
+                settings.put("cloud.etcd.host", stubServer().address());
             }
         } catch (FailedToResolveConfigException exception) {
             fail("your test configuration file is incorrect: " + System.getProperty("tests.config"));
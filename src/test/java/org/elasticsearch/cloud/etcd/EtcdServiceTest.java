@@ -0,0 +1,94 @@
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.common.component.Lifecycle;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.discovery.etcd.EtcdStats;
+import org.elasticsearch.discovery.etcd.EtcdStore;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the node wide store keeps one pool of connections for every round, until the service is closed.
+ */
+public class EtcdServiceTest {
+
+    private EtcdStubServer server;
+
+    private ThreadPool threadPool;
+
+    private EtcdService etcdService;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EtcdStubServer().start();
+        server.put("/services/elasticsearch/1", "127.0.0.1:9301", null);
+        threadPool = new ThreadPool("test");
+        etcdService = new EtcdService(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.host", server.address())
+                .put("cloud.etcd.read.freshness", "0ms")
+                .put("cloud.etcd.limit.reads_per_second", 0)
+                .build(), threadPool);
+        etcdService.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (etcdService.lifecycleState() != Lifecycle.State.CLOSED) {
+            etcdService.stop();
+            etcdService.close();
+        }
+        threadPool.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void testStoreIsSharedAcrossRounds() {
+        EtcdStore store = etcdService.store();
+        for (int i = 0; i < 20; i++) {
+            assertThat(etcdService.store(), sameInstance(store));
+            assertThat(etcdService.store().listMembers("transport").members.get("1"), equalTo("127.0.0.1:9301"));
+        }
+        assertThat(server.requests("GET"), equalTo(20L));
+        // the rounds run one after the other, a single keep-alive connection serves them all
+        assertThat(server.connections(), equalTo(1));
+    }
+
+    @Test
+    public void testNewStoresRecordIntoTheNodeStats() {
+        EtcdStore directory = etcdService.newStore("/services");
+        try {
+            assertThat(directory.listClusters("transport").members.get("elasticsearch/1"), equalTo("127.0.0.1:9301"));
+            assertThat(directory.stats(), sameInstance(etcdService.store().stats()));
+            assertThat(etcdService.store().stats().latency(EtcdStats.Operation.QUERY).count(), equalTo(1L));
+        } finally {
+            directory.close();
+        }
+    }
+
+    @Test
+    public void testCloseShutsDownThePool() {
+        EtcdStore store = etcdService.store();
+        assertThat(store.listMembers("transport").members.size(), equalTo(1));
+        etcdService.stop();
+        etcdService.close();
+        long requests = server.requests();
+        try {
+            store.listMembers("transport");
+            fail("the connection manager has been shut down");
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertThat(cause, instanceOf(IllegalStateException.class));
+            assertThat(cause.getMessage(), containsString("shut down"));
+        }
+        assertThat(server.requests(), equalTo(requests));
+    }
+}
@@ -0,0 +1,757 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.cloud.etcd;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the subset of the etcd v2 keys API used by the plugin, so discovery can be tested
+ * without an etcd cluster:
+ * <ul>
+ * <li><tt>PUT</tt> with <tt>value</tt>, <tt>ttl</tt>, <tt>dir</tt>, <tt>prevExist</tt>, <tt>prevValue</tt> and
+ * <tt>refresh</tt>,</li>
+ * <li><tt>GET</tt> of keys and directories, <tt>recursive</tt>, and <tt>wait</tt>/<tt>waitIndex</tt> watches over a
+ * bounded event history,</li>
+ * <li><tt>DELETE</tt> with <tt>prevValue</tt>, <tt>dir</tt> and <tt>recursive</tt>,</li>
+ * <li>TTLs that really expire, with an <tt>expire</tt> event, and errorCode bodies for the failures.</li>
+ * </ul>
+ * Faults can be injected on every request: latency, dropped connections, 5xx answers and slowly written bodies.
+ */
+public class EtcdStubServer implements HttpHandler {
+
+    public static final int KEY_NOT_FOUND = 100;
+    public static final int TEST_FAILED = 101;
+    public static final int NOT_FILE = 102;
+    public static final int NOT_DIR = 104;
+    public static final int NODE_EXIST = 105;
+    public static final int VALUE_REQUIRED = 200;
+    public static final int EVENT_INDEX_CLEARED = 401;
+
+    /** number of events kept for watches, as etcd does */
+    public static final int HISTORY_SIZE = 1000;
+
+    /** a watch without event is dropped after this time so that abandoned watches do not pile up */
+    private static final long MAX_WATCH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService reaper;
+
+    private final Node root = new Node("/", true, null);
+
+    private final LinkedList<Event> history = new LinkedList<>();
+
+    private long index = 1;
+
+    private boolean stopped;
+
+    private final Random random;
+
+    private volatile long latencyMillis;
+
+    private volatile double dropRate;
+
+    private volatile double errorRate;
+
+    private volatile int errorStatus = 503;
+
+    private volatile int slowChunkSize;
+
+    private volatile long slowChunkDelayMillis;
+
+    private volatile boolean ignoreRefresh;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final Map<String, AtomicLong> requestsByMethod = new HashMap<>();
+
+    private final Set<InetSocketAddress> connections = ConcurrentCollections.newConcurrentSet();
+
+    public EtcdStubServer() throws IOException {
+        this(0, System.nanoTime());
+    }
+
+    /**
+     * @param port the port to listen to on the loopback interface, 0 for any free port
+     * @param seed the seed of the random decisions of the fault injection
+     */
+    public EtcdStubServer(int port, long seed) throws IOException {
+        this.random = new Random(seed);
+        for (String method : new String[]{"GET", "PUT", "DELETE", "POST"}) {
+            requestsByMethod.put(method, new AtomicLong());
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.server.createContext("/", this);
+        this.executor = EsExecutors.newCached(30, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory("etcd_stub"));
+        this.server.setExecutor(executor);
+        this.reaper = new ScheduledThreadPoolExecutor(1, EsExecutors.daemonThreadFactory("etcd_stub_reaper"));
+    }
+
+    public EtcdStubServer start() {
+        server.start();
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EtcdStubServer.this) {
+                    expire();
+                }
+            }
+        }, 50, 50, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        reaper.shutdownNow();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return <tt>host:port</tt>, as expected by <tt>cloud.etcd.host</tt>
+     */
+    public String address() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public synchronized long index() {
+        return index;
+    }
+
+    /**
+     * @return the value of the key, <tt>null</tt> if it does not exist or is a directory
+     */
+    public synchronized String get(String key) {
+        expire();
+        Node node = find(normalize(key));
+        return node == null || node.dir ? null : node.value;
+    }
+
+    /**
+     * Writes a key directly, as another etcd client would.
+     */
+    public synchronized void put(String key, String value, TimeValue ttl) {
+        expire();
+        Node node = create(normalize(key), false);
+        if (node == null) {
+            throw new IllegalArgumentException("not a directory on the path of " + key);
+        }
+        String action = "set";
+        ObjectNode prevNode = node.createdIndex == 0 ? null : node.toJson(false);
+        long modified = ++index;
+        if (node.createdIndex == 0) {
+            node.createdIndex = modified;
+        }
+        node.value = value;
+        node.modifiedIndex = modified;
+        node.expiresAt = ttl == null ? 0 : System.currentTimeMillis() + ttl.millis();
+        record(action, node, prevNode);
+    }
+
+    // fault injection
+
+    /**
+     * Delays every request by the given time before handling it.
+     */
+    public EtcdStubServer latency(TimeValue latency) {
+        this.latencyMillis = latency.millis();
+        return this;
+    }
+
+    /**
+     * Closes the connection without answer for the given share of the requests.
+     */
+    public EtcdStubServer dropConnections(double rate) {
+        this.dropRate = rate;
+        return this;
+    }
+
+    /**
+     * Answers the given share of the requests with the given 5xx status.
+     */
+    public EtcdStubServer errors(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * Writes the bodies by chunks of the given size, waiting between each of them.
+     */
+    public EtcdStubServer slowBodies(int chunkSize, TimeValue delayPerChunk) {
+        this.slowChunkSize = chunkSize;
+        this.slowChunkDelayMillis = delayPerChunk.millis();
+        return this;
+    }
+
+    /**
+     * Ignores the <tt>refresh</tt> parameter as etcd before 2.3 does, so a refresh without value blanks the key.
+     */
+    public EtcdStubServer ignoreRefresh(boolean ignoreRefresh) {
+        this.ignoreRefresh = ignoreRefresh;
+        return this;
+    }
+
+    public EtcdStubServer clearFaults() {
+        latencyMillis = 0;
+        dropRate = 0;
+        errorRate = 0;
+        slowChunkSize = 0;
+        slowChunkDelayMillis = 0;
+        return this;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long requests(String method) {
+        AtomicLong count = requestsByMethod.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of client connections requests were received on, a pooled client keeps reusing the same
+     */
+    public int connections() {
+        return connections.size();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the bytes of the request URIs and form bodies received so far
+     */
+    public long bytesRead() {
+        return bytesRead.get();
+    }
+
+    // HTTP
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            requests.incrementAndGet();
+            connections.add(exchange.getRemoteAddress());
+            AtomicLong count = requestsByMethod.get(method);
+            if (count != null) {
+                count.incrementAndGet();
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (roll(dropRate)) {
+                // no answer at all, the client sees the connection closed
+                return;
+            }
+            if (roll(errorRate)) {
+                send(exchange, errorStatus, error(errorStatus, "injected failure", exchange.getRequestURI().getPath()), index());
+                return;
+            }
+            bytesRead.addAndGet(exchange.getRequestURI().toString().length());
+            String path = exchange.getRequestURI().getRawPath();
+            if (!path.startsWith("/v2/keys")) {
+                send(exchange, 404, null, index());
+                return;
+            }
+            String key = normalize(URLDecoder.decode(path.substring("/v2/keys".length()), "UTF-8"));
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            if ("PUT".equals(method) || "POST".equals(method)) {
+                String form = readForm(exchange);
+                if (form != null) {
+                    bytesRead.addAndGet(form.length());
+                }
+                params.putAll(params(form));
+                Response response;
+                synchronized (this) {
+                    response = put(key, params);
+                }
+                send(exchange, response.status, response.body, response.etcdIndex);
+            } else if ("DELETE".equals(method)) {
+                Response response;
+                synchronized (this) {
+                    response = delete(key, params);
+                }
+                send(exchange, response.status, response.body, response.etcdIndex);
+            } else if ("GET".equals(method)) {
+                Response response = "true".equals(params.get("wait")) ? watch(key, params) : get(key, params);
+                if (response != null) {
+                    send(exchange, response.status, response.body, response.etcdIndex);
+                }
+            } else {
+                send(exchange, 405, null, index());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean roll(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, ObjectNode body, long etcdIndex) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("X-Etcd-Index", String.valueOf(etcdIndex));
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        int chunkSize = slowChunkSize;
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        if (chunkSize <= 0) {
+            out.write(bytes);
+        } else {
+            for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                out.write(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+                out.flush();
+                Thread.sleep(slowChunkDelayMillis);
+            }
+        }
+        out.flush();
+        bytesWritten.addAndGet(bytes.length);
+    }
+
+    private static String readForm(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.startsWith("application/x-www-form-urlencoded")) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toString("UTF-8");
+    }
+
+    private static Map<String, String> params(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    // keys API
+
+    private Response put(String key, Map<String, String> params) {
+        expire();
+        boolean dir = "true".equals(params.get("dir"));
+        boolean refresh = !ignoreRefresh && "true".equals(params.get("refresh"));
+        String value = params.get("value");
+        String prevExist = params.get("prevExist");
+        String prevValue = params.get("prevValue");
+        Long ttl = params.containsKey("ttl") && !params.get("ttl").isEmpty() ? Long.parseLong(params.get("ttl")) : null;
+        if (!dir && !refresh && value == null) {
+            value = "";
+        }
+        Node existing = find(key);
+        if (existing == null && (refresh || "true".equals(prevExist) || prevValue != null)) {
+            return errorResponse(404, KEY_NOT_FOUND, "Key not found", key);
+        }
+        if (existing != null && "false".equals(prevExist)) {
+            return errorResponse(412, NODE_EXIST, "Key already exists", key);
+        }
+        if (existing != null && existing.dir && !dir) {
+            return errorResponse(403, NOT_FILE, "Not a file", key);
+        }
+        if (refresh && value != null && !value.isEmpty()) {
+            return errorResponse(400, VALUE_REQUIRED, "Value provided on refresh", key);
+        }
+        if (prevValue != null && !prevValue.equals(existing.value)) {
+            return errorResponse(412, TEST_FAILED, "Compare failed", "[" + prevValue + " != " + existing.value + "]");
+        }
+        long expiresAt = ttl == null ? 0 : System.currentTimeMillis() + ttl * 1000;
+        if (refresh) {
+            // only extends the TTL, watchers are not notified
+            ObjectNode prevNode = existing.toJson(false);
+            existing.expiresAt = expiresAt;
+            return new Response(200, result("update", existing.toJson(false), prevNode));
+        }
+        Node node = existing != null ? existing : create(key, dir);
+        if (node == null) {
+            return errorResponse(403, NOT_DIR, "Not a directory", key);
+        }
+        ObjectNode prevNode = existing == null ? null : existing.toJson(false);
+        String action = prevValue != null ? "compareAndSwap" : existing == null ? ("false".equals(prevExist) ? "create" : "set")
+                : ("true".equals(prevExist) ? "update" : "set");
+        long modified = ++index;
+        if (existing == null) {
+            node.createdIndex = modified;
+        }
+        if (!node.dir) {
+            node.value = value;
+        }
+        node.modifiedIndex = modified;
+        node.expiresAt = expiresAt;
+        record(action, node, prevNode);
+        return new Response(existing == null ? 201 : 200, result(action, node.toJson(false), prevNode));
+    }
+
+    private Response delete(String key, Map<String, String> params) {
+        expire();
+        Node node = find(key);
+        if (node == null || node == root) {
+            return errorResponse(404, KEY_NOT_FOUND, "Key not found", key);
+        }
+        String prevValue = params.get("prevValue");
+        if (node.dir && !"true".equals(params.get("dir")) && !"true".equals(params.get("recursive"))) {
+            return errorResponse(403, NOT_FILE, "Not a file", key);
+        }
+        if (prevValue != null && !prevValue.equals(node.value)) {
+            return errorResponse(412, TEST_FAILED, "Compare failed", "[" + prevValue + " != " + node.value + "]");
+        }
+        String action = prevValue != null ? "compareAndDelete" : "delete";
+        ObjectNode prevNode = node.toJson(false);
+        remove(node);
+        node.modifiedIndex = ++index;
+        record(action, node, prevNode);
+        return new Response(200, result(action, node.deletedJson(), prevNode));
+    }
+
+    private synchronized Response get(String key, Map<String, String> params) {
+        expire();
+        Node node = find(key);
+        if (node == null) {
+            return errorResponse(404, KEY_NOT_FOUND, "Key not found", key);
+        }
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("action", "get");
+        body.set("node", node.toJson(true, "true".equals(params.get("recursive"))));
+        return new Response(200, body);
+    }
+
+    /**
+     * Answers with the first matching event at or after <tt>waitIndex</tt>, blocking until there is one.
+     *
+     * @return <tt>null</tt> if the server stopped while waiting, the connection is then closed without answer
+     */
+    private Response watch(String key, Map<String, String> params) throws InterruptedException {
+        boolean recursive = "true".equals(params.get("recursive"));
+        synchronized (this) {
+            expire();
+            long waitIndex = params.containsKey("waitIndex") ? Long.parseLong(params.get("waitIndex")) : index + 1;
+            if (!history.isEmpty() && waitIndex < history.getFirst().index) {
+                return errorResponse(400, EVENT_INDEX_CLEARED, "The event in requested index is outdated and cleared",
+                        "the requested history has been cleared [" + history.getFirst().index + "/" + waitIndex + "]");
+            }
+            long deadline = System.currentTimeMillis() + MAX_WATCH_MILLIS;
+            while (!stopped && System.currentTimeMillis() < deadline) {
+                for (Event event : history) {
+                    if (event.index >= waitIndex && event.matches(key, recursive)) {
+                        return new Response(200, event.body);
+                    }
+                }
+                wait(100);
+                expire();
+            }
+            return null;
+        }
+    }
+
+    // store
+
+    private void record(String action, Node node, ObjectNode prevNode) {
+        Event event = new Event(node.modifiedIndex, node.key, result(action, action.endsWith("elete") || "expire".equals(action)
+                ? node.deletedJson() : node.toJson(false), prevNode));
+        history.addLast(event);
+        while (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        notifyAll();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        List<Node> expired = new ArrayList<>();
+        root.collectExpired(now, expired);
+        for (Node node : expired) {
+            if (find(node.key) != node) {
+                // already removed with an expired parent
+                continue;
+            }
+            ObjectNode prevNode = node.toJson(false);
+            remove(node);
+            node.modifiedIndex = ++index;
+            record("expire", node, prevNode);
+        }
+    }
+
+    private Node find(String key) {
+        if ("/".equals(key)) {
+            return root;
+        }
+        Node node = root;
+        for (String part : key.substring(1).split("/")) {
+            if (node.children == null) {
+                return null;
+            }
+            node = node.children.get(part);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Creates the node and its missing parent directories.
+     *
+     * @return <tt>null</tt> if a parent is not a directory
+     */
+    private Node create(String key, boolean dir) {
+        Node existing = find(key);
+        if (existing != null) {
+            return existing;
+        }
+        Node node = root;
+        String[] parts = key.substring(1).split("/");
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            path.append('/').append(parts[i]);
+            if (!node.dir) {
+                return null;
+            }
+            Node child = node.children.get(parts[i]);
+            if (child == null) {
+                boolean last = i == parts.length - 1;
+                child = new Node(path.toString(), !last || dir, node);
+                if (!last) {
+                    child.createdIndex = child.modifiedIndex = index;
+                }
+                node.children.put(parts[i], child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private void remove(Node node) {
+        if (node.parent != null) {
+            node.parent.children.remove(node.name());
+        }
+    }
+
+    private static String normalize(String key) {
+        String path = key.startsWith("/") ? key : "/" + key;
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.replaceAll("/+", "/");
+    }
+
+    private static ObjectNode result(String action, ObjectNode node, ObjectNode prevNode) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("action", action);
+        body.set("node", node);
+        if (prevNode != null) {
+            body.set("prevNode", prevNode);
+        }
+        return body;
+    }
+
+    private Response errorResponse(int status, int errorCode, String message, String cause) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("errorCode", errorCode);
+        body.put("message", message);
+        body.put("cause", cause);
+        body.put("index", index);
+        return new Response(status, body);
+    }
+
+    private ObjectNode error(int status, String message, String cause) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("errorCode", 300);
+        body.put("message", message + " [" + status + "]");
+        body.put("cause", cause);
+        return body;
+    }
+
+    /**
+     * An answer and the index of the store it was computed at, created while holding the lock of the server.
+     */
+    private class Response {
+        final int status;
+        final ObjectNode body;
+        final long etcdIndex;
+
+        Response(int status, ObjectNode body) {
+            this.status = status;
+            this.body = body;
+            this.etcdIndex = index;
+        }
+    }
+
+    private static class Event {
+        final long index;
+        final String key;
+        final ObjectNode body;
+
+        Event(long index, String key, ObjectNode body) {
+            this.index = index;
+            this.key = key;
+            this.body = body;
+        }
+
+        boolean matches(String watched, boolean recursive) {
+            if (key.equals(watched)) {
+                return true;
+            }
+            return recursive && ("/".equals(watched) || key.startsWith(watched + "/"));
+        }
+    }
+
+    private static class Node {
+        final String key;
+        final boolean dir;
+        final Node parent;
+        final TreeMap<String, Node> children;
+        String value;
+        long createdIndex;
+        long modifiedIndex;
+        long expiresAt;
+
+        Node(String key, boolean dir, Node parent) {
+            this.key = key;
+            this.dir = dir;
+            this.parent = parent;
+            this.children = dir ? new TreeMap<String, Node>() : null;
+        }
+
+        String name() {
+            return key.substring(key.lastIndexOf('/') + 1);
+        }
+
+        void collectExpired(long now, List<Node> expired) {
+            if (expiresAt > 0 && expiresAt <= now) {
+                expired.add(this);
+                return;
+            }
+            if (children != null) {
+                for (Node child : children.values()) {
+                    child.collectExpired(now, expired);
+                }
+            }
+        }
+
+        ObjectNode toJson(boolean listChildren) {
+            return toJson(listChildren, false);
+        }
+
+        ObjectNode toJson(boolean listChildren, boolean recursive) {
+            ObjectNode json = MAPPER.createObjectNode();
+            json.put("key", key);
+            if (dir) {
+                json.put("dir", true);
+                if (listChildren && !children.isEmpty()) {
+                    ArrayNode nodes = json.putArray("nodes");
+                    for (Node child : children.values()) {
+                        nodes.add(child.toJson(recursive, recursive));
+                    }
+                }
+            } else {
+                json.put("value", value);
+            }
+            if (expiresAt > 0) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                json.put("expiration", format.format(new Date(expiresAt)));
+                json.put("ttl", Math.max(1, (expiresAt - System.currentTimeMillis() + 999) / 1000));
+            }
+            if (parent != null) {
+                json.put("modifiedIndex", modifiedIndex);
+                json.put("createdIndex", createdIndex);
+            }
+            return json;
+        }
+
+        ObjectNode deletedJson() {
+            ObjectNode json = MAPPER.createObjectNode();
+            json.put("key", key);
+            if (dir) {
+                json.put("dir", true);
+            }
+            json.put("modifiedIndex", modifiedIndex);
+            json.put("createdIndex", createdIndex);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.cloud.etcd;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.discovery.etcd.EtcdClient;
+import org.elasticsearch.discovery.etcd.EtcdListing;
+import org.elasticsearch.discovery.etcd.EtcdResult;
+import org.elasticsearch.discovery.etcd.EtcdStats;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the stand-in itself: the keys API, watches over expiring keys and the injected faults.
+ */
+public class EtcdStubServerTest extends AbstractEtcdStubTest {
+
+    @Test
+    public void testRegisterAndList() {
+        assertThat(client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null), is(true));
+        server.put("/services/elasticsearch/2/transport", "127.0.0.1:9301", null);
+        server.put("/services/elasticsearch/2/http", "127.0.0.1:9201", null);
+
+        EtcdListing listing = client.listMembers("transport");
+        assertThat(listing.members.size(), equalTo(2));
+        assertThat(listing.members.get("1"), equalTo("127.0.0.1:9300"));
+        assertThat(listing.members.get("2"), equalTo("127.0.0.1:9301"));
+        assertThat(listing.etcdIndex, equalTo(server.index()));
+        assertThat(client.queryEtcdKeys("missing").errorCode, equalTo(EtcdClient.KEY_NOT_FOUND));
+    }
+
+    @Test
+    public void testWatchAndExpiry() throws Exception {
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null);
+        long waitIndex = client.listMembers("transport").etcdIndex + 1;
+        server.put("/services/elasticsearch/2", "127.0.0.1:9301", TimeValue.timeValueMillis(200));
+
+        EtcdResult created = client.watchEtcdKeys(waitIndex);
+        assertThat(created.action, equalTo("set"));
+        assertThat(created.node.key, equalTo("/services/elasticsearch/2"));
+
+        // blocks until the reaper expires the key
+        EtcdResult expired = client.watchEtcdKeys(created.node.modifiedIndex + 1);
+        assertThat(expired.action, equalTo("expire"));
+        assertThat(expired.node.key, equalTo("/services/elasticsearch/2"));
+        assertThat(server.get("/services/elasticsearch/2"), nullValue());
+
+        for (int i = 0; i < EtcdStubServer.HISTORY_SIZE; i++) {
+            server.put("/services/other", String.valueOf(i), null);
+        }
+        assertThat(client.watchEtcdKeys(waitIndex).errorCode, equalTo(401));
+    }
+
+    @Test
+    public void testInjectedFaults() {
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null);
+
+        server.errors(1.0, 503);
+        try {
+            client.listMembers("transport");
+            fail("expected the 503 to fail the read");
+        } catch (RuntimeException e) {
+            assertThat(client.stats().errors(503), equalTo(1L));
+        }
+
+        server.clearFaults().dropConnections(1.0);
+        try {
+            client.listMembers("transport");
+            fail("expected the dropped connection to fail the read");
+        } catch (RuntimeException e) {
+            assertThat(client.stats().errors(EtcdStats.NO_STATUS), equalTo(1L));
+        }
+
+        server.clearFaults().latency(TimeValue.timeValueMillis(100)).slowBodies(16, TimeValue.timeValueMillis(5));
+        long start = System.currentTimeMillis();
+        assertThat(client.listMembers("transport").members.get("1"), equalTo("127.0.0.1:9300"));
+        assertThat(System.currentTimeMillis() - start, greaterThanOrEqualTo(100L));
+    }
+}
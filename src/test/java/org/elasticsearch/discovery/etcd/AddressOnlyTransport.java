@@ -0,0 +1,35 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.BoundTransportAddress;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.local.LocalTransport;
+
+/**
+ * Publishes a loopback address and parses the registered ones without any lookup, nothing is ever bound.
+ */
+class AddressOnlyTransport extends LocalTransport {
+
+    private final BoundTransportAddress address;
+
+    AddressOnlyTransport(Settings settings, ThreadPool threadPool, int port) {
+        super(settings, threadPool, Version.CURRENT);
+        InetSocketTransportAddress local = new InetSocketTransportAddress("127.0.0.1", port);
+        this.address = new BoundTransportAddress(local, local);
+    }
+
+    @Override
+    public BoundTransportAddress boundAddress() {
+        return address;
+    }
+
+    @Override
+    public TransportAddress[] addressesFromString(String address) {
+        int colon = address.lastIndexOf(':');
+        return new TransportAddress[]{new InetSocketTransportAddress(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)))};
+    }
+}
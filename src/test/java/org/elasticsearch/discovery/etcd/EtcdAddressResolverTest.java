@@ -0,0 +1,95 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdAddressResolverTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdAddressResolverTest.class);
+
+    private final ConcurrentMap<String, AtomicInteger> lookups = ConcurrentCollections.newConcurrentMap();
+
+    private StubResolver resolver;
+
+    @After
+    public void tearDown() {
+        if (resolver != null) {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void testCachesLookups() {
+        resolver = new StubResolver(ImmutableSettings.settingsBuilder().put("cloud.etcd.resolve.negative_ttl", "1h").build(), 0);
+        Map<String, TransportAddress[]> resolved = resolver.resolve(Arrays.asList("10.0.0.1:9300", "unknown:9300", "10.0.0.1:9300"));
+        assertThat(resolved.keySet(), contains("10.0.0.1:9300"));
+        assertThat(resolved.get("10.0.0.1:9300")[0], equalTo((TransportAddress) new InetSocketTransportAddress("10.0.0.1", 9300)));
+
+        resolver.resolve(Arrays.asList("10.0.0.1:9300", "unknown:9300"));
+        assertThat(lookups.get("10.0.0.1:9300").get(), equalTo(1));
+        assertThat(lookups.get("unknown:9300").get(), equalTo(1));
+    }
+
+    @Test
+    public void testResolvesInParallelWithinTimeout() {
+        resolver = new StubResolver(ImmutableSettings.settingsBuilder().put("cloud.etcd.resolve.timeout", "1s").build(), 400);
+        long start = System.currentTimeMillis();
+        Map<String, TransportAddress[]> resolved = resolver.resolve(Arrays.asList("10.0.0.1:9300", "10.0.0.2:9300", "10.0.0.3:9300"));
+        assertThat(resolved.size(), equalTo(3));
+        assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+
+        resolver.close();
+        resolver = new StubResolver(ImmutableSettings.settingsBuilder().put("cloud.etcd.resolve.timeout", "50ms").build(), 400);
+        assertThat(resolver.resolve(Arrays.asList("10.0.0.1:9300")).size(), equalTo(0));
+    }
+
+    @Test
+    public void testCachesTimedOutLookups() {
+        resolver = new StubResolver(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.resolve.timeout", "50ms")
+                .put("cloud.etcd.resolve.negative_ttl", "1h")
+                .build(), 400);
+        assertThat(resolver.resolve(Arrays.asList("10.0.0.1:9300")).size(), equalTo(0));
+        long start = System.currentTimeMillis();
+        assertThat(resolver.resolve(Arrays.asList("10.0.0.1:9300")).size(), equalTo(0));
+        assertThat(System.currentTimeMillis() - start, lessThan(50L));
+        assertThat(lookups.get("10.0.0.1:9300").get(), equalTo(1));
+    }
+
+    private class StubResolver extends EtcdAddressResolver {
+        private final long delayMillis;
+
+        StubResolver(Settings settings, long delayMillis) {
+            super(logger, settings, null);
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        protected TransportAddress[] lookup(String value) throws Exception {
+            lookups.putIfAbsent(value, new AtomicInteger());
+            lookups.get(value).incrementAndGet();
+            Thread.sleep(delayMillis);
+            if (value.startsWith("unknown")) {
+                throw new UnknownHostException(value);
+            }
+            String[] parts = value.split(":");
+            return new TransportAddress[]{new InetSocketTransportAddress(parts[0], Integer.parseInt(parts[1]))};
+        }
+    }
+}
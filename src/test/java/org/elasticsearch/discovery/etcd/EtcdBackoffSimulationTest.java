@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     dmetzler
+ */
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cloud.etcd.EtcdStubServer;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Restarts a fleet of heartbeats at once against an etcd that answers 503, and compares the peak request rate of
+ * fixed refreshes with the one of jittered, backed off refreshes. Every heartbeat schedules itself on the thread pool
+ * of the test, and registers through one client shared by the fleet.
+ */
+public class EtcdBackoffSimulationTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdBackoffSimulationTest.class);
+
+    private static final int NODES = 50;
+
+    private static final TimeValue INTERVAL = TimeValue.timeValueMillis(100);
+
+    private static final long SAMPLE_MILLIS = 50;
+
+    /** below the TTL of 2s, as the backoff max */
+    private static final TimeValue MAX_DELAY = TimeValue.timeValueMillis(1600);
+
+    private static final Settings FIXED = ImmutableSettings.settingsBuilder()
+            .put("cloud.etcd.backoff.jitter", 0)
+            .put("cloud.etcd.backoff.multiplier", 1)
+            .build();
+
+    private static final Settings BACKOFF = ImmutableSettings.settingsBuilder()
+            .put("cloud.etcd.backoff.jitter", 0.25)
+            .put("cloud.etcd.backoff.multiplier", 2)
+            .put("cloud.etcd.backoff.max", "1600ms")
+            .build();
+
+    private EtcdStubServer server;
+
+    private EtcdClient client;
+
+    private ThreadPool threadPool;
+
+    private final List<EtcdHeartbeat> heartbeats = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EtcdStubServer().start();
+        client = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.pool.max_connections", 32)
+                // the client is shared by every heartbeat, the budget of a single node does not apply
+                .put("cloud.etcd.limit.writes_per_second", 0)
+                .build());
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void tearDown() {
+        stopNodes();
+        threadPool.shutdownNow();
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testDelays() {
+        EtcdBackoff backoff = new EtcdBackoff(BACKOFF, new Random(0));
+        for (int i = 0; i < 100; i++) {
+            assertThat(backoff.delayMillis(1000), allOf(greaterThanOrEqualTo(750L), lessThanOrEqualTo(1250L)));
+        }
+        for (int i = 0; i < 10; i++) {
+            backoff.onFailure();
+        }
+        assertThat(backoff.delayMillis(100), allOf(greaterThanOrEqualTo(1200L), lessThanOrEqualTo(2000L)));
+        backoff.onSuccess();
+        assertThat(backoff.delayMillis(100), lessThanOrEqualTo(125L));
+        assertThat(new EtcdBackoff(FIXED).delayMillis(100), equalTo(100L));
+    }
+
+    @Test
+    public void testMassRestart() throws Exception {
+        server.errors(1.0, 503);
+        start(FIXED);
+        long fixedPeak = peakRequestsPerSecond(2000);
+        stopNodes();
+        start(BACKOFF);
+        long backoffPeak = peakRequestsPerSecond(2000);
+        logger.info("peak requests per second while etcd fails: fixed [{}], backoff [{}]", fixedPeak, backoffPeak);
+        assertThat(backoffPeak * 2, lessThan(fixedPeak));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        server.errors(1.0, 503);
+        List<EtcdBackoff> backoffs = start(BACKOFF);
+        Thread.sleep(1500);
+        for (EtcdBackoff backoff : backoffs) {
+            assertThat(backoff.failures(), greaterThan(0));
+        }
+        server.clearFaults();
+        // the longest backoff is 2s with the jitter
+        Thread.sleep(2500);
+        for (EtcdBackoff backoff : backoffs) {
+            assertThat(backoff.failures(), equalTo(0));
+        }
+        for (int i = 0; i < NODES; i++) {
+            assertThat(server.get("/services/elasticsearch/" + i), equalTo("127.0.0.1:" + (9300 + i)));
+        }
+        long before = server.requests();
+        Thread.sleep(1000);
+        assertThat(server.requests() - before, greaterThan(NODES * 1000 / INTERVAL.millis() / 2));
+    }
+
+    /**
+     * Starts the heartbeat of every node at the same time, each with its own backoff.
+     */
+    private List<EtcdBackoff> start(Settings policy) {
+        List<EtcdBackoff> backoffs = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            EtcdBackoff backoff = new EtcdBackoff(policy, new Random(i));
+            backoffs.add(backoff);
+            TransportService transportService = new TransportService(
+                    new AddressOnlyTransport(ImmutableSettings.EMPTY, threadPool, 9300 + i), threadPool);
+            heartbeats.add(new EtcdHeartbeat(logger, threadPool, transportService, client, Collections.singletonList(String.valueOf(i)),
+                    "transport", null, INTERVAL, backoff, MAX_DELAY));
+        }
+        for (EtcdHeartbeat heartbeat : heartbeats) {
+            heartbeat.start();
+        }
+        return backoffs;
+    }
+
+    private void stopNodes() {
+        for (EtcdHeartbeat heartbeat : heartbeats) {
+            heartbeat.stop();
+        }
+        heartbeats.clear();
+    }
+
+    /**
+     * Samples the requests served by the stub and returns the highest count over a sliding one second window.
+     */
+    private long peakRequestsPerSecond(long durationMillis) throws InterruptedException {
+        int window = (int) (1000 / SAMPLE_MILLIS);
+        long[] samples = new long[(int) (durationMillis / SAMPLE_MILLIS) + 1];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = server.requests();
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+        long peak = 0;
+        for (int i = window; i < samples.length; i++) {
+            peak = Math.max(peak, samples[i] - samples[i - window]);
+        }
+        return peak;
+    }
+}
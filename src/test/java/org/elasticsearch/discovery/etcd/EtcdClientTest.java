@@ -1,11 +1,29 @@
 package org.elasticsearch.discovery.etcd;
 
+import org.elasticsearch.cloud.etcd.AbstractEtcdStubTest;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.slf4j.Slf4jESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.junit.Ignore;
 import org.junit.Test;
 
-public class EtcdClientTest {
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the v2 client against the in-process etcd stand-in, but for {@link #testPut} which needs a real etcd.
+ */
+public class EtcdClientTest extends AbstractEtcdStubTest {
     String etcdHost = "127.0.0.1:4001";
     String etcdKey = "/services/elasticsearch";
     int etcdInterval  = 5;
@@ -15,6 +33,235 @@ public class EtcdClientTest {
     @Ignore
     public void testPut() {
         EtcdClient etcdClient = new EtcdClient(logger, etcdHost, etcdKey, etcdInterval);
-        System.out.println(etcdClient.updateEtcdkeys("1", "test"));
+        System.out.println(etcdClient.register(Collections.singletonList("1"), "transport", "test", null));
+    }
+
+    @Test
+    public void testRegisterInOneRequest() {
+        assertThat(client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null), is(true));
+        long index = server.index();
+        // an unchanged value only refreshes the TTL, which does not move the index
+        assertThat(client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(server.index(), equalTo(index));
+        assertThat(server.requests("PUT"), equalTo(2L));
+        assertThat(server.requests("GET"), equalTo(0L));
+
+        // the instance directory was created by hand, the type error switches the layout
+        server.put("/services/elasticsearch/2/transport", "127.0.0.1:9300", null);
+        assertThat(client.register(Collections.singletonList("2"), "transport", "127.0.0.1:9301", null), is(true));
+        assertThat(server.get("/services/elasticsearch/2/transport"), equalTo("127.0.0.1:9301"));
+        assertThat(server.requests("PUT"), equalTo(4L));
+        assertThat(client.register(Collections.singletonList("2"), "transport", "127.0.0.1:9301", null), is(true));
+        assertThat(server.requests("PUT"), equalTo(5L));
+    }
+
+    @Test
+    public void testMasterHint() {
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null);
+        assertThat(client.get(EtcdMasterHint.KEY), nullValue());
+        assertThat(client.publish(EtcdMasterHint.KEY, "id=a,address=127.0.0.1:9300"), is(true));
+        long index = server.index();
+        assertThat(client.publish(EtcdMasterHint.KEY, "id=a,address=127.0.0.1:9300"), is(true));
+        assertThat(server.index(), equalTo(index));
+
+        EtcdMasterHint hint = EtcdMasterHint.parse(client.get(EtcdMasterHint.KEY));
+        assertThat(hint.nodeId(), equalTo("a"));
+        assertThat(hint.address(), equalTo("127.0.0.1:9300"));
+        assertThat(client.listMembers("transport").members.keySet(), contains("1"));
+    }
+
+    @Test
+    public void testListClusters() {
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null);
+        client.publish(EtcdMasterHint.KEY, "id=a,address=127.0.0.1:9300");
+        server.put("/services/logs/2/transport", "127.0.0.1:9301", null);
+        EtcdClient parent = new EtcdClient(logger, server.address(), "/services", 1, ImmutableSettings.EMPTY);
+        try {
+            EtcdListing listing = parent.listClusters("transport");
+            assertThat(listing.members.size(), equalTo(2));
+            assertThat(listing.members.get("elasticsearch/1"), equalTo("127.0.0.1:9300"));
+            assertThat(listing.members.get("logs/2"), equalTo("127.0.0.1:9301"));
+            assertThat(listing.etcdIndex, equalTo(server.index()));
+        } finally {
+            parent.close();
+        }
+    }
+
+    @Test
+    public void testThrottledReadsServeTheLastListing() {
+        EtcdClient limited = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.read.freshness", "0ms")
+                .put("cloud.etcd.limit.reads_per_second", 0.001)
+                .put("cloud.etcd.limit.read_burst", 1)
+                .build());
+        try {
+            server.put("/services/elasticsearch/1", "127.0.0.1:9300", null);
+            assertThat(limited.listMembers("transport").members.keySet(), contains("1"));
+            server.put("/services/elasticsearch/2", "127.0.0.1:9301", null);
+            long requests = server.requests();
+            assertThat(limited.listMembers("transport").members.keySet(), contains("1"));
+            assertThat(server.requests(), equalTo(requests));
+            assertThat(limited.stats().throttledReads(), equalTo(1L));
+            // a request that never completed is sent anyway
+            assertThat(limited.listMembers(null, "transport", 2), notNullValue());
+            assertThat(server.requests(), equalTo(requests + 1));
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void testThrottledPublicationIsNotAccepted() {
+        EtcdClient limited = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.limit.writes_per_second", 0.001)
+                .put("cloud.etcd.limit.write_burst", 1)
+                .build());
+        try {
+            assertThat(limited.publish("_master", "127.0.0.1:9300"), is(true));
+            long requests = server.requests();
+            assertThat(limited.publish("_master", "127.0.0.1:9301"), is(false));
+            assertThat(server.requests(), equalTo(requests));
+            assertThat(server.get("/services/elasticsearch/_master"), equalTo("127.0.0.1:9300"));
+            assertThat(limited.stats().throttledWrites(), equalTo(1L));
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void testRegisterAttributes() {
+        EtcdNodeAttributes attributes = new EtcdNodeAttributes(false, true, "eu-west-1a");
+        assertThat(client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", attributes), is(true));
+        assertThat(server.get("/services/elasticsearch/1/attributes"), equalTo("master=false,data=true,zone=eu-west-1a"));
+        server.put("/services/elasticsearch/2", "127.0.0.1:9301", null);
+
+        EtcdListing listing = client.listMembers("transport");
+        assertThat(listing.members.get("1"), equalTo("127.0.0.1:9300"));
+        assertThat(listing.attributes.get("1"), equalTo(attributes));
+        assertThat(listing.attributes.containsKey("2"), is(false));
+    }
+
+    @Test
+    public void testDeregister() {
+        EtcdNodeAttributes attributes = new EtcdNodeAttributes(true, true, null);
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", attributes);
+        assertThat(client.deregister(Collections.singletonList("1"), "transport", "127.0.0.1:9300", attributes), is(true));
+        assertThat(server.get("/services/elasticsearch/1/transport"), nullValue());
+        assertThat(server.get("/services/elasticsearch/1/attributes"), nullValue());
+
+        // another node took over the instance key
+        client.register(Collections.singletonList("2"), "transport", "127.0.0.1:9301", attributes);
+        server.put("/services/elasticsearch/2/transport", "127.0.0.1:9302", null);
+        assertThat(client.deregister(Collections.singletonList("2"), "transport", "127.0.0.1:9301", attributes), is(false));
+        assertThat(server.get("/services/elasticsearch/2/transport"), equalTo("127.0.0.1:9302"));
+    }
+
+    @Test
+    public void testZonedLayout() {
+        EtcdLayout master = zoned("a", true);
+        EtcdLayout data = zoned("b", false);
+        assertThat(master.instanceKeys("1"), contains("a/1", "_seeds/1"));
+        assertThat(data.instanceKeys("2"), contains("b/2"));
+        assertThat(client.register(master.instanceKeys("1"), "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(client.register(data.instanceKeys("2"), "transport", "127.0.0.1:9301", null), is(true));
+        assertThat(client.register(zoned("c", false).instanceKeys("3"), "transport", "127.0.0.1:9302", null), is(true));
+
+        // its zone and the seeds, zone c is not read
+        EtcdListing listing = data.read(client, "transport", "2");
+        assertThat(listing.members.keySet(), containsInAnyOrder("1", "2"));
+        assertThat(listing.fullTree, is(false));
+
+        // nothing but itself in zone d and no other seed, every zone is read
+        listing = zoned("d", true).read(client, "transport", "1");
+        assertThat(listing.members.keySet(), containsInAnyOrder("1", "2", "3"));
+        assertThat(listing.fullTree, is(true));
+    }
+
+    @Test
+    public void testLayoutPerInstanceKey() {
+        // the seeds key was laid out as a directory by hand, the zone key holds the address
+        server.put("/services/elasticsearch/_seeds/1/transport", "127.0.0.1:9299", null);
+        List<String> instanceKeys = zoned("a", true).instanceKeys("1");
+        assertThat(client.register(instanceKeys, "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(server.get("/services/elasticsearch/a/1"), equalTo("127.0.0.1:9300"));
+        assertThat(server.get("/services/elasticsearch/_seeds/1/transport"), equalTo("127.0.0.1:9300"));
+
+        // each key keeps its own layout, a refresh is a single request per key
+        long puts = server.requests("PUT");
+        assertThat(client.register(instanceKeys, "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(server.requests("PUT") - puts, equalTo(2L));
+
+        assertThat(client.deregister(instanceKeys, "transport", "127.0.0.1:9300", null), is(true));
+        assertThat(server.get("/services/elasticsearch/a/1"), nullValue());
+        assertThat(server.get("/services/elasticsearch/_seeds/1/transport"), nullValue());
+    }
+
+    @Test
+    public void testReadTimeout() {
+        client.register(Collections.singletonList("1"), "transport", "127.0.0.1:9300", null);
+        EtcdClient impatient = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.failover.backoff", "1ms")
+                .put("cloud.etcd.read.hedge_delay", "0")
+                .put("cloud.etcd.read_timeout", "200ms")
+                .build());
+        try {
+            server.latency(TimeValue.timeValueSeconds(2));
+            long start = System.currentTimeMillis();
+            try {
+                impatient.listMembers("transport");
+                fail("expected the read to time out");
+            } catch (RuntimeException e) {
+                assertThat(System.currentTimeMillis() - start, lessThan(1500L));
+                assertThat(impatient.stats().errors(EtcdStats.NO_STATUS), equalTo(1L));
+            }
+        } finally {
+            impatient.close();
+        }
+    }
+
+    @Test
+    public void testConnectTimeout() throws Exception {
+        // a listener that never accepts, once its accept queue is full further SYNs are dropped as by a blackholed host
+        ServerSocket blackhole = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        List<Socket> queued = new ArrayList<>();
+        EtcdClient impatient = new EtcdClient(logger, "127.0.0.1:" + blackhole.getLocalPort(), "/services/elasticsearch", 1,
+                ImmutableSettings.settingsBuilder()
+                        .put("cloud.etcd.failover.backoff", "1ms")
+                        .put("cloud.etcd.read.hedge_delay", "0")
+                        .put("cloud.etcd.connect_timeout", "300ms")
+                        .build());
+        try {
+            for (int i = 0; i < 8; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(blackhole.getLocalSocketAddress(), 200);
+                    queued.add(socket);
+                } catch (SocketTimeoutException e) {
+                    socket.close();
+                    break;
+                }
+            }
+            long start = System.currentTimeMillis();
+            try {
+                impatient.listMembers("transport");
+                fail("expected the connection to time out");
+            } catch (RuntimeException e) {
+                assertThat(System.currentTimeMillis() - start, lessThan(3000L));
+            }
+        } finally {
+            impatient.close();
+            for (Socket socket : queued) {
+                socket.close();
+            }
+            blackhole.close();
+        }
+    }
+
+    private static EtcdLayout zoned(String zone, boolean master) {
+        return EtcdLayout.fromSettings(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.layout", "zones")
+                .put("cloud.etcd.zone", zone)
+                .put("node.master", master)
+                .build());
     }
 }
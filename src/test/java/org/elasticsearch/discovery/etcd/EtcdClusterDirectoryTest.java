@@ -0,0 +1,38 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdClusterDirectoryTest {
+
+    @Test
+    public void testKeyOfTheCluster() {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("cluster.name", "logs")
+                .put("cloud.etcd.key", "/services/elasticsearch")
+                .put("cloud.etcd.clusters.search", "/services/search")
+                .put("cloud.etcd.clusters.logs", "/services/logs/")
+                .build();
+        assertThat(EtcdClusterDirectory.serviceKey(settings), equalTo("/services/logs/"));
+        assertThat(EtcdClusterDirectory.parentKey(settings, "/services/logs/"), equalTo("/services"));
+        assertThat(EtcdClusterDirectory.clusterId("/services/logs/"), equalTo("logs"));
+
+        // a cluster that is not listed keeps cloud.etcd.key
+        assertThat(EtcdClusterDirectory.serviceKey(ImmutableSettings.settingsBuilder().put(settings).put("cluster.name", "other").build()),
+                equalTo("/services/elasticsearch"));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void testClustersShareTheParent() {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.clusters.search", "/services/search")
+                .put("cloud.etcd.clusters.logs", "/other/logs")
+                .build();
+        EtcdClusterDirectory.parentKey(settings, "/services/search");
+    }
+}
@@ -0,0 +1,23 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class EtcdDiscoveryModuleTest {
+
+    @Test
+    public void testRequiresCloudEnabled() {
+        new EtcdDiscoveryModule(ImmutableSettings.EMPTY);
+        try {
+            new EtcdDiscoveryModule(ImmutableSettings.settingsBuilder().put("cloud.enabled", false).build());
+            fail("the etcd service is not bound without cloud.enabled");
+        } catch (ElasticsearchIllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("cloud.enabled"));
+        }
+    }
+}
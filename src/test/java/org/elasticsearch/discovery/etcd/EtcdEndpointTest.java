@@ -0,0 +1,35 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.sun.jersey.api.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdEndpointTest {
+
+    @Test
+    public void testBackoff() {
+        EtcdEndpoint endpoint = new EtcdEndpoint("127.0.0.1:4001", Client.create(), false, TimeValue.timeValueSeconds(60),
+                TimeValue.timeValueSeconds(1), TimeValue.timeValueSeconds(5));
+        assertThat(endpoint.toString(), equalTo("http://127.0.0.1:4001"));
+        long now = System.currentTimeMillis();
+        assertThat(endpoint.isAvailable(now), is(true));
+
+        endpoint.onFailure();
+        assertThat(endpoint.isAvailable(now), is(false));
+        assertThat(endpoint.retryAfterMillis() - now, both(greaterThanOrEqualTo(1000L)).and(lessThan(2000L)));
+        endpoint.onFailure();
+        endpoint.onFailure();
+        assertThat(endpoint.retryAfterMillis() - now, both(greaterThanOrEqualTo(4000L)).and(lessThan(5000L)));
+        for (int i = 0; i < 40; i++) {
+            endpoint.onFailure();
+        }
+        assertThat(endpoint.retryAfterMillis() - now, both(greaterThanOrEqualTo(5000L)).and(lessThan(6000L)));
+
+        endpoint.onSuccess(TimeValue.timeValueMillis(10).nanos());
+        assertThat(endpoint.isAvailable(now), is(true));
+        assertThat(endpoint.latencyNanos(), equalTo(TimeValue.timeValueMillis(10).nanos()));
+    }
+}
@@ -0,0 +1,160 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cloud.etcd.EtcdStubServer;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs a heartbeat against the in-process etcd stand-in, with a TTL of 2s refreshed every 200ms unless stated
+ * otherwise.
+ */
+public class EtcdHeartbeatTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdHeartbeatTest.class);
+
+    private static final String KEY = "/services/elasticsearch/node1";
+
+    private EtcdStubServer server;
+
+    private EtcdClient client;
+
+    private ThreadPool threadPool;
+
+    private EtcdHeartbeat heartbeat;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EtcdStubServer().start();
+        client = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.EMPTY);
+        threadPool = new ThreadPool("test");
+        heartbeat = heartbeat(TimeValue.timeValueMillis(200), new EtcdBackoff(ImmutableSettings.EMPTY));
+    }
+
+    @After
+    public void tearDown() {
+        heartbeat.stop();
+        threadPool.shutdownNow();
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testRefreshesBeforeTheTtlExpires() throws Exception {
+        heartbeat.start();
+        awaitValue("127.0.0.1:9300");
+        long puts = server.requests("PUT");
+        // well past the TTL, the registration is only kept alive by the refreshes
+        Thread.sleep(3000);
+        assertThat(server.get(KEY), equalTo("127.0.0.1:9300"));
+        assertThat(server.requests("PUT") - puts, greaterThanOrEqualTo(5L));
+        assertThat(client.stats().timeSinceLastRegistrationMillis(), lessThan(1000L));
+    }
+
+    @Test
+    public void testRegistersAgainOnceExpired() throws Exception {
+        heartbeat.start();
+        awaitValue("127.0.0.1:9300");
+        // the key expires under the heartbeat, its next refresh fails with 100 and writes the value again
+        server.put(KEY, "127.0.0.1:9999", TimeValue.timeValueMillis(1));
+        awaitValue("127.0.0.1:9300");
+    }
+
+    @Test
+    public void testWritesTheValueWithoutTtlRefresh() throws Exception {
+        // etcd before 2.3 blanks the key on the first refresh, the value is written again and no longer refreshed
+        server.ignoreRefresh(true);
+        heartbeat.start();
+        awaitValue("127.0.0.1:9300");
+        Thread.sleep(600);
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end) {
+            assertThat(server.get(KEY), equalTo("127.0.0.1:9300"));
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testStopsRefreshing() throws Exception {
+        heartbeat.start();
+        awaitValue("127.0.0.1:9300");
+        heartbeat.stop();
+        long requests = server.requests();
+        Thread.sleep(1000);
+        assertThat(server.requests(), equalTo(requests));
+        // left to its TTL
+        long expired = System.currentTimeMillis() + 5000;
+        while (server.get(KEY) != null && System.currentTimeMillis() < expired) {
+            Thread.sleep(100);
+        }
+        assertThat(server.get(KEY), nullValue());
+        heartbeat.start();
+        Thread.sleep(500);
+        assertThat(server.requests(), equalTo(requests));
+    }
+
+    @Test
+    public void testRefreshIsNotThrottled() throws Exception {
+        client.close();
+        // a single write per second, refreshes every 50ms
+        client = new EtcdClient(logger, server.address(), "/services/elasticsearch", 1, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.limit.writes_per_second", 1)
+                .put("cloud.etcd.limit.write_burst", 1)
+                .build());
+        EtcdBackoff backoff = new EtcdBackoff(ImmutableSettings.EMPTY);
+        heartbeat = heartbeat(TimeValue.timeValueMillis(50), backoff);
+        heartbeat.start();
+        awaitValue("127.0.0.1:9300");
+
+        long puts = server.requests("PUT");
+        Thread.sleep(1000);
+        // the write budget only applies to publications, the refreshes are all sent
+        assertThat(server.requests("PUT") - puts, greaterThanOrEqualTo(10L));
+        assertThat(client.stats().throttledWrites(), equalTo(0L));
+        assertThat(backoff.failures(), equalTo(0));
+        assertThat(client.stats().timeSinceLastRegistrationMillis(), lessThan(200L));
+    }
+
+    @Test
+    public void testBackoffIsCappedBelowTheTtl() throws Exception {
+        server.errors(1.0, 503);
+        // the default backoff grows up to 60s, well past the TTL
+        EtcdBackoff backoff = new EtcdBackoff(ImmutableSettings.EMPTY);
+        heartbeat.stop();
+        heartbeat = heartbeat(TimeValue.timeValueMillis(50), backoff, TimeValue.timeValueMillis(200));
+        heartbeat.start();
+        Thread.sleep(3000);
+        // uncapped, the delays would double up to 1.6s and leave room for about 6 attempts
+        assertThat(backoff.failures(), greaterThanOrEqualTo(10));
+    }
+
+    private EtcdHeartbeat heartbeat(TimeValue period, EtcdBackoff backoff) {
+        return heartbeat(period, backoff, TimeValue.timeValueSeconds(1));
+    }
+
+    private EtcdHeartbeat heartbeat(TimeValue period, EtcdBackoff backoff, TimeValue maxDelay) {
+        TransportService transportService = new TransportService(
+                new AddressOnlyTransport(ImmutableSettings.EMPTY, threadPool, 9300), threadPool);
+        return new EtcdHeartbeat(logger, threadPool, transportService, client, Collections.singletonList("node1"), "transport",
+                null, period, backoff, maxDelay);
+    }
+
+    private void awaitValue(String value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!value.equals(server.get(KEY)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(server.get(KEY), equalTo(value));
+    }
+}
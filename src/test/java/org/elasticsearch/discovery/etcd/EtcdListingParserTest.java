@@ -0,0 +1,40 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdListingParserTest {
+
+    @Test
+    public void testBothLayouts() throws Exception {
+        EtcdListing listing = parse("{\"action\":\"get\",\"node\":{\"key\":\"/services/elasticsearch\",\"dir\":true,\"nodes\":["
+                + "{\"key\":\"/services/elasticsearch/1\",\"value\":\"127.0.0.1:9300\",\"expiration\":\"2015-01-01T00:00:00Z\",\"ttl\":6,\"modifiedIndex\":7,\"createdIndex\":7},"
+                + "{\"key\":\"/services/elasticsearch/2\",\"dir\":true,\"nodes\":["
+                + "{\"key\":\"/services/elasticsearch/2/http\",\"value\":\"127.0.0.1:9201\"},"
+                + "{\"key\":\"/services/elasticsearch/2/meta\",\"dir\":true,\"nodes\":[{\"key\":\"/services/elasticsearch/2/meta/a\",\"value\":\"b\"}]},"
+                + "{\"key\":\"/services/elasticsearch/2/transport\",\"value\":\"127.0.0.1:9301\"}],\"modifiedIndex\":8,\"createdIndex\":8},"
+                + "{\"key\":\"/services/elasticsearch/3\",\"dir\":true,\"nodes\":[]}"
+                + "],\"modifiedIndex\":3,\"createdIndex\":3}}");
+        assertThat(listing.errorCode, equalTo(0));
+        assertThat(listing.members.size(), equalTo(2));
+        assertThat(listing.members.get("1"), equalTo("127.0.0.1:9300"));
+        assertThat(listing.members.get("2"), equalTo("127.0.0.1:9301"));
+    }
+
+    @Test
+    public void testError() throws Exception {
+        EtcdListing listing = parse("{\"errorCode\":100,\"message\":\"Key not found\",\"cause\":\"/services/elasticsearch\",\"index\":12}");
+        assertThat(listing.errorCode, equalTo(100));
+        assertThat(listing.message, equalTo("Key not found"));
+        assertThat(listing.members.isEmpty(), is(true));
+    }
+
+    private EtcdListing parse(String json) throws Exception {
+        return new EtcdListingParser("transport").parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
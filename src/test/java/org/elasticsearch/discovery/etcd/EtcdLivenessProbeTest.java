@@ -0,0 +1,85 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdLivenessProbeTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdLivenessProbeTest.class);
+
+    private ServerSocket live;
+
+    private int deadPort;
+
+    private EtcdLivenessProbe probe;
+
+    @Before
+    public void setUp() throws IOException {
+        live = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        try (ServerSocket dead = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            deadPort = dead.getLocalPort();
+        }
+        probe = new EtcdLivenessProbe(logger, ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.probe.timeout", "500ms")
+                .put("cloud.etcd.probe.quarantine", "1h")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        live.close();
+    }
+
+    @Test
+    public void testFiltersAndQuarantinesUnreachable() throws IOException {
+        DiscoveryNode liveNode = node("1", live.getLocalPort());
+        DiscoveryNode deadNode = node("2", deadPort);
+        assertThat(probe.filter(Arrays.asList(liveNode, deadNode)), contains(liveNode));
+
+        // the dead address is quarantined, it is not probed again even once it accepts connections
+        try (ServerSocket restarted = new ServerSocket(deadPort, 50, InetAddress.getByName("127.0.0.1"))) {
+            assertThat(probe.filter(Arrays.asList(liveNode, deadNode)), contains(liveNode));
+        }
+    }
+
+    @Test
+    public void testUnfilteredWhenNothingIsReachable() {
+        List<DiscoveryNode> nodes = Arrays.asList(node("1", deadPort));
+        assertThat(probe.filter(nodes), sameInstance(nodes));
+        assertThat(probe.filter(nodes), sameInstance(nodes));
+    }
+
+    @Test
+    public void testUnfilteredWhenOnlySelfIsReachable() throws IOException {
+        // this node always accepts connections, it does not count as a live peer
+        DiscoveryNode self = node("1", live.getLocalPort());
+        List<DiscoveryNode> nodes = Arrays.asList(self, node("2", deadPort), node("3", deadPort));
+        assertThat(probe.filter(nodes, self.address()), sameInstance(nodes));
+
+        // with a live peer, the dead ones are left out and this node is kept
+        try (ServerSocket peer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            DiscoveryNode peerNode = node("4", peer.getLocalPort());
+            assertThat(probe.filter(Arrays.asList(self, peerNode, node("2", deadPort)), self.address()), contains(self, peerNode));
+        }
+    }
+
+    private static DiscoveryNode node(String id, int port) {
+        return new DiscoveryNode("#cloud-" + id + "-0", new InetSocketTransportAddress("127.0.0.1", port), Version.CURRENT);
+    }
+}
@@ -0,0 +1,69 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdMembershipFileTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdMembershipFileTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        File directory = folder.newFolder();
+        EtcdMembershipFile file = new EtcdMembershipFile(logger, directory);
+        assertThat(file.load(), nullValue());
+
+        assertThat(file.write(10, ImmutableMap.of("1", "127.0.0.1:9300", "2", "127.0.0.1:9301")), is(true));
+        assertThat(new File(directory, EtcdMembershipFile.FILE_NAME).exists(), is(true));
+        assertThat(new File(directory, EtcdMembershipFile.FILE_NAME + ".tmp").exists(), is(false));
+
+        EtcdListing listing = new EtcdMembershipFile(logger, directory).load();
+        assertThat(listing.etcdIndex, equalTo(10L));
+        assertThat(listing.members.size(), equalTo(2));
+        assertThat(listing.members.get("2"), equalTo("127.0.0.1:9301"));
+    }
+
+    @Test
+    public void testOnlyChangedMembersReplace() throws Exception {
+        File directory = folder.newFolder();
+        EtcdMembershipFile file = new EtcdMembershipFile(logger, directory);
+        assertThat(file.write(10, ImmutableMap.of("1", "127.0.0.1:9300")), is(true));
+        // a TTL refresh bumps the index without changing the members
+        assertThat(file.write(12, ImmutableMap.of("1", "127.0.0.1:9300")), is(false));
+        assertThat(file.write(13, ImmutableMap.of("1", "127.0.0.1:9302")), is(true));
+
+        EtcdListing listing = new EtcdMembershipFile(logger, directory).load();
+        assertThat(listing.etcdIndex, equalTo(13L));
+        assertThat(listing.members.get("1"), equalTo("127.0.0.1:9302"));
+    }
+
+    @Test
+    public void testIndexGoingBackwardsReplaces() throws Exception {
+        File directory = folder.newFolder();
+        EtcdMembershipFile file = new EtcdMembershipFile(logger, directory);
+        assertThat(file.write(1000, ImmutableMap.of("1", "127.0.0.1:9300")), is(true));
+        // etcd restored from a backup, the members read since then are still persisted
+        assertThat(file.write(5, ImmutableMap.of("2", "127.0.0.1:9301")), is(true));
+        assertThat(file.write(6, ImmutableMap.of("2", "127.0.0.1:9301", "3", "127.0.0.1:9302")), is(true));
+
+        // nor does the persisted index stop a restarted node from writing
+        file = new EtcdMembershipFile(logger, directory);
+        assertThat(file.load().etcdIndex, equalTo(6L));
+        assertThat(file.write(2, ImmutableMap.of("3", "127.0.0.1:9302")), is(true));
+        EtcdListing listing = new EtcdMembershipFile(logger, directory).load();
+        assertThat(listing.etcdIndex, equalTo(2L));
+        assertThat(listing.members.keySet(), contains("3"));
+    }
+}
@@ -0,0 +1,112 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.slf4j.Slf4jESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdMembershipWatcherTest {
+    ESLogger logger = Slf4jESLoggerFactory.getLogger(EtcdMembershipWatcherTest.class.getName());
+    EtcdClient etcdClient;
+    EtcdMembershipWatcher watcher;
+
+    @Before
+    public void setUp() {
+        etcdClient = new EtcdClient(logger, "127.0.0.1:4001", "/services/elasticsearch", 5);
+        watcher = new EtcdMembershipWatcher(logger, etcdClient, "transport", 5, EsExecutors.daemonThreadFactory("etcd_watcher"));
+    }
+
+    @After
+    public void tearDown() {
+        etcdClient.close();
+    }
+
+    @Test
+    public void testApplyBothLayouts() {
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/1", "127.0.0.1:9300")), is(true));
+        assertThat(watcher.apply(event("create", "/services/elasticsearch/2/transport", "127.0.0.1:9301")), is(true));
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/2/http", "127.0.0.1:9201")), is(false));
+        // refreshing a TTL with the same value is not a membership change
+        assertThat(watcher.apply(event("update", "/services/elasticsearch/1", "127.0.0.1:9300")), is(false));
+        assertThat(watcher.apply(event("set", "/services/other/3", "127.0.0.1:9302")), is(false));
+        // the master hint is not an instance
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/_master", "id=a,address=127.0.0.1:9300")), is(false));
+    }
+
+    @Test
+    public void testApplyRemovals() {
+        watcher.apply(event("set", "/services/elasticsearch/1", "127.0.0.1:9300"));
+        watcher.apply(event("set", "/services/elasticsearch/2/transport", "127.0.0.1:9301"));
+        assertThat(watcher.apply(event("expire", "/services/elasticsearch/1", null)), is(true));
+        assertThat(watcher.apply(event("delete", "/services/elasticsearch/2", null)), is(true));
+        assertThat(watcher.apply(event("delete", "/services/elasticsearch/2", null)), is(false));
+    }
+
+    @Test
+    public void testApplyZonedLayout() {
+        EtcdLayout layout = EtcdLayout.fromSettings(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.layout", "zones")
+                .put("cloud.etcd.zone", "a")
+                .build());
+        watcher = new EtcdMembershipWatcher(logger, etcdClient, "transport", 5, EsExecutors.daemonThreadFactory("etcd_watcher"),
+                new EtcdBackoff(ImmutableSettings.EMPTY), layout, "1");
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/a/2", "127.0.0.1:9301")), is(true));
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/_seeds/3/transport", "127.0.0.1:9302")), is(true));
+        // other zones are not read
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/b/4", "127.0.0.1:9303")), is(false));
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/5", "127.0.0.1:9304")), is(false));
+        assertThat(watcher.apply(event("expire", "/services/elasticsearch/a/2", null)), is(true));
+    }
+
+    @Test
+    public void testApplyClusters() {
+        etcdClient.close();
+        etcdClient = new EtcdClient(logger, "127.0.0.1:4001", "/services", 5);
+        watcher = new EtcdMembershipWatcher(logger, etcdClient, "transport", 5,
+                EsExecutors.daemonThreadFactory("etcd_watcher"), new EtcdBackoff(ImmutableSettings.EMPTY), EtcdLayout.clusters(), null);
+        assertThat(watcher.apply(event("set", "/services/elasticsearch/1", "127.0.0.1:9300")), is(true));
+        assertThat(watcher.apply(event("set", "/services/logs/1/transport", "127.0.0.1:9301")), is(true));
+        assertThat(watcher.apply(event("set", "/services/logs/_master", "id=a,address=127.0.0.1:9301")), is(false));
+        assertThat(watcher.apply(event("set", "/services/logs", null)), is(false));
+        watcher.publish();
+        assertThat(watcher.snapshot().members.keySet(), contains("elasticsearch/1", "logs/1"));
+        assertThat(EtcdClusterDirectory.cluster(watcher.snapshot().members, "logs").get("1"), equalTo("127.0.0.1:9301"));
+    }
+
+    @Test
+    public void testAwaitChange() throws Exception {
+        assertThat(watcher.awaitChange(null, 10), is(false));
+        final EtcdMembershipWatcher.Snapshot seen = watcher.snapshot();
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                watcher.apply(event("set", "/services/elasticsearch/1", "127.0.0.1:9300"));
+                watcher.publish();
+            }
+        };
+        publisher.start();
+        assertThat(watcher.awaitChange(seen, 10000), is(true));
+        assertThat(watcher.snapshot().members.get("1"), equalTo("127.0.0.1:9300"));
+        publisher.join();
+    }
+
+    static EtcdResult event(String action, String key, String value) {
+        EtcdResult result = new EtcdResult();
+        result.action = action;
+        result.node = node(key, value);
+        return result;
+    }
+
+    static EtcdNode node(String key, String value) {
+        EtcdNode node = new EtcdNode();
+        node.key = key;
+        node.value = value;
+        return node;
+    }
+}
@@ -0,0 +1,30 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdNodeAttributesTest {
+
+    @Test
+    public void testLocal() {
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.EMPTY), equalTo(new EtcdNodeAttributes(true, true, null)));
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.settingsBuilder().put("node.data", false).put("node.zone", "a").build()),
+                equalTo(new EtcdNodeAttributes(true, false, "a")));
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.settingsBuilder().put("node.zone", "a").put("cloud.etcd.zone", "b").build()).zone(),
+                equalTo("b"));
+    }
+
+    @Test
+    public void testClientNode() {
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.settingsBuilder().put("node.client", true).build()),
+                equalTo(new EtcdNodeAttributes(false, false, null)));
+        // explicit roles win, as for a discovery node
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.settingsBuilder().put("node.client", true).put("node.master", true).build()),
+                equalTo(new EtcdNodeAttributes(true, false, null)));
+        assertThat(EtcdNodeAttributes.local(ImmutableSettings.settingsBuilder().put("node.client", false).build()),
+                equalTo(new EtcdNodeAttributes(true, true, null)));
+    }
+}
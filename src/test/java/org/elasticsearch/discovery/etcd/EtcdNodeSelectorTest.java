@@ -0,0 +1,63 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdNodeSelectorTest {
+
+    private static final Map<String, String> MEMBERS = ImmutableMap.<String, String>builder()
+            .put("self", "10.0.0.1:9300")
+            .put("data-a", "10.0.0.2:9300")
+            .put("data-b", "10.0.0.3:9300")
+            .put("master-b", "10.0.0.4:9300")
+            .put("master-a", "10.0.0.5:9300")
+            .put("unknown", "10.0.0.6:9300")
+            .build();
+
+    private static final Map<String, EtcdNodeAttributes> ATTRIBUTES = ImmutableMap.<String, EtcdNodeAttributes>builder()
+            .put("self", new EtcdNodeAttributes(false, true, "a"))
+            .put("data-a", new EtcdNodeAttributes(false, true, "a"))
+            .put("data-b", new EtcdNodeAttributes(false, true, "b"))
+            .put("master-b", new EtcdNodeAttributes(true, false, "b"))
+            .put("master-a", new EtcdNodeAttributes(true, false, "a"))
+            .build();
+
+    @Test
+    public void testAllByDefault() {
+        EtcdNodeSelector selector = new EtcdNodeSelector(ImmutableSettings.EMPTY, "self");
+        assertThat(selector.select(MEMBERS, ATTRIBUTES), sameInstance(MEMBERS));
+    }
+
+    @Test
+    public void testMasterOnly() {
+        EtcdNodeSelector selector = new EtcdNodeSelector(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.discovery.master_only", true)
+                .put("cloud.etcd.zone", "a")
+                .build(), "self");
+        assertThat(selector.select(MEMBERS, ATTRIBUTES).keySet(), contains("self", "master-a", "master-b", "unknown"));
+    }
+
+    @Test
+    public void testPreferenceOrder() {
+        EtcdNodeSelector selector = new EtcdNodeSelector(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.discovery.max_nodes", 4)
+                .put("node.zone", "a")
+                .build(), "self");
+        assertThat(selector.select(MEMBERS, ATTRIBUTES).keySet(), contains("self", "master-a", "master-b", "unknown", "data-a"));
+    }
+
+    @Test
+    public void testParseAttributes() {
+        EtcdNodeAttributes attributes = EtcdNodeAttributes.parse(new EtcdNodeAttributes(false, true, "eu-west-1a").toString());
+        assertThat(attributes.master(), is(false));
+        assertThat(attributes.data(), is(true));
+        assertThat(attributes.zone(), equalTo("eu-west-1a"));
+        assertThat(EtcdNodeAttributes.parse("zone=,other=1").master(), is(true));
+    }
+}
@@ -0,0 +1,35 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdRateLimiterTest {
+
+    @Test
+    public void testBurstThenRate() throws Exception {
+        EtcdRateLimiter limiter = new EtcdRateLimiter(20, 3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.tryAcquire(), is(true));
+        }
+        assertThat(limiter.tryAcquire(), is(false));
+        // one token every 50ms
+        Thread.sleep(120);
+        assertThat(limiter.tryAcquire(), is(true));
+        assertThat(limiter.tryAcquire(), is(true));
+        assertThat(limiter.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void testDisabled() {
+        EtcdRateLimiter limiter = EtcdRateLimiter.reads(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.limit.reads_per_second", 0)
+                .put("cloud.etcd.limit.read_burst", 1)
+                .build());
+        for (int i = 0; i < 1000; i++) {
+            assertThat(limiter.tryAcquire(), is(true));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class EtcdSingleFlightTest {
+
+    private final EtcdStats stats = new EtcdStats();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Test
+    public void testConcurrentCallersShareOneRequest() throws Exception {
+        final EtcdSingleFlight<String> singleFlight = new EtcdSingleFlight<>(TimeValue.timeValueMillis(0), stats);
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        final String[] results = new String[8];
+        Thread[] callers = new Thread[results.length];
+        for (int i = 0; i < callers.length; i++) {
+            final int caller = i;
+            callers[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[caller] = singleFlight.execute("key", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            requests.incrementAndGet();
+                            sent.countDown();
+                            answer.await();
+                            return "listing";
+                        }
+                    });
+                }
+            };
+            callers[i].start();
+            if (i == 0) {
+                sent.await();
+            }
+        }
+        while (stats.coalesced() < callers.length - 1) {
+            Thread.sleep(10);
+        }
+        answer.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertThat(requests.get(), equalTo(1));
+        assertThat(Arrays.asList(results), everyItem(equalTo("listing")));
+
+        // nothing is in flight anymore and there is no freshness window
+        singleFlight.execute("key", request("again"));
+        assertThat(requests.get(), equalTo(2));
+    }
+
+    @Test
+    public void testFreshnessWindow() throws Exception {
+        EtcdSingleFlight<String> singleFlight = new EtcdSingleFlight<>(TimeValue.timeValueMillis(100), stats);
+        assertThat(singleFlight.execute("key", request("first")), equalTo("first"));
+        assertThat(singleFlight.execute("key", request("second")), equalTo("first"));
+        assertThat(singleFlight.execute("other", request("other")), equalTo("other"));
+        assertThat(stats.freshHits(), equalTo(1L));
+        Thread.sleep(150);
+        assertThat(singleFlight.execute("key", request("third")), equalTo("third"));
+        assertThat(requests.get(), equalTo(3));
+    }
+
+    @Test
+    public void testFailuresAreNotKept() {
+        EtcdSingleFlight<String> singleFlight = new EtcdSingleFlight<>(TimeValue.timeValueSeconds(10), stats);
+        try {
+            singleFlight.execute("key", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("unavailable");
+                }
+            });
+            fail("the failure should be thrown to the caller");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("unavailable"));
+        }
+        assertThat(singleFlight.execute("key", request("listing")), equalTo("listing"));
+    }
+
+    private Callable<String> request(final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                requests.incrementAndGet();
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,46 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EtcdStatsTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        EtcdStats stats = new EtcdStats();
+        stats.onSuccess(EtcdStats.Operation.QUERY, TimeValue.timeValueMillis(3).nanos());
+        stats.onSuccess(EtcdStats.Operation.QUERY, TimeValue.timeValueMillis(5).nanos());
+        stats.onSuccess(EtcdStats.Operation.QUERY, TimeValue.timeValueMinutes(2).nanos());
+        stats.onError(503);
+        stats.onError(EtcdStats.NO_STATUS);
+        stats.onError(-1);
+        stats.onBytesRead(1024);
+        stats.onRound(3);
+
+        EtcdStats.Histogram query = stats.latency(EtcdStats.Operation.QUERY);
+        assertThat(query.count(), equalTo(3L));
+        // 3ms and 5ms both fall in the (2ms, 5ms] bucket
+        assertThat(query.bucket(2), equalTo(2L));
+        assertThat(query.bucket(EtcdStats.Histogram.BOUNDS_MILLIS.length), equalTo(1L));
+        assertThat(stats.latency(EtcdStats.Operation.WATCH).count(), equalTo(0L));
+        assertThat(stats.errors(503), equalTo(1L));
+        assertThat(stats.errors(EtcdStats.NO_STATUS), equalTo(2L));
+        assertThat(stats.timeSinceLastRegistrationMillis(), equalTo(-1L));
+        stats.onRegistered();
+        assertThat(stats.timeSinceLastRegistrationMillis(), greaterThanOrEqualTo(0L));
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        stats.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+        assertThat(json, containsString("\"errors\":{\"no_status\":2,\"503\":1}"));
+        assertThat(json, containsString("\"le_5ms\":2"));
+        assertThat(json, containsString("\"bytes_read_in_bytes\":1024"));
+        assertThat(json, containsString("\"rounds\":{\"count\":1,\"nodes_discovered\":3,\"last_nodes\":3,\"deadline_exceeded\":0}"));
+    }
+}
@@ -0,0 +1,218 @@
+package org.elasticsearch.discovery.etcd;
+
+import org.elasticsearch.cloud.etcd.EtcdService;
+import org.elasticsearch.cloud.etcd.EtcdStubServer;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.hamcrest.Matcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs discovery rounds of a provider against the in-process etcd stand-in, with a transport bound to
+ * <tt>127.0.0.1:9399</tt> that never opens a socket.
+ */
+public class EtcdUnicastHostsProviderTest {
+
+    private static final String KEY = "/services/elasticsearch";
+
+    private EtcdStubServer server;
+
+    private ThreadPool threadPool;
+
+    private NodeEnvironment nodeEnvironment;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EtcdService etcdService;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EtcdStubServer().start();
+        threadPool = new ThreadPool("test");
+        Settings clientSettings = ImmutableSettings.settingsBuilder().put("node.client", true).put("node.data", false).build();
+        nodeEnvironment = new NodeEnvironment(clientSettings, new Environment(clientSettings));
+    }
+
+    @After
+    public void tearDown() {
+        if (etcdService != null) {
+            etcdService.stop();
+            etcdService.close();
+        }
+        nodeEnvironment.close();
+        threadPool.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void testRoundDeadlineServesLastGoodNodes() throws Exception {
+        server.put(KEY + "/1", "127.0.0.1:9301", null);
+        server.put(KEY + "/2", "127.0.0.1:9302", null);
+        EtcdUnicastHostsProvider provider = provider(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.watch.enabled", false)
+                .put("cloud.etcd.round.deadline", "1s"));
+        assertThat(ports(provider.buildDynamicNodes()), hasItems(9301, 9302));
+
+        server.put(KEY + "/3", "127.0.0.1:9303", null);
+        server.latency(TimeValue.timeValueSeconds(3));
+        long start = System.currentTimeMillis();
+        List<Integer> ports = ports(provider.buildDynamicNodes());
+        assertThat(System.currentTimeMillis() - start, lessThan(2500L));
+        assertThat(ports, hasItems(9301, 9302));
+        assertThat(ports, not(hasItem(9303)));
+        assertThat(etcdService.store().stats().deadlineExceeded(), equalTo(1L));
+
+        // the late read may still be in flight, the next completed round serves the new instance
+        server.clearFaults();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!ports(provider.buildDynamicNodes()).contains(9303) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(ports(provider.buildDynamicNodes()), hasItems(9301, 9302, 9303));
+    }
+
+    @Test
+    public void testMasterHintFromWatch() throws Exception {
+        server.put(KEY + "/1", "127.0.0.1:9301", null);
+        server.put(KEY + "/2", "127.0.0.1:9302", null);
+        server.put(KEY + "/3", "127.0.0.1:9303", null);
+        EtcdUnicastHostsProvider provider = provider(ImmutableSettings.settingsBuilder());
+        List<Integer> unhinted = awaitRound(provider, hasItems(9301, 9302, 9303, 9399));
+
+        server.put(KEY + "/" + EtcdMasterHint.KEY, "id=b,address=127.0.0.1:9302", null);
+        List<Integer> hinted = awaitRound(provider, contains(9302, 9301, 9303, 9399));
+        assertThat(hinted.size(), equalTo(unhinted.size()));
+        // the hint comes with the watched membership, rounds do not read etcd
+        long gets = server.requests("GET");
+        for (int i = 0; i < 5; i++) {
+            assertThat(ports(provider.buildDynamicNodes()).get(0), equalTo(9302));
+        }
+        assertThat(server.requests("GET"), equalTo(gets));
+
+        // a hint to an address that is not registered, left by a stopped master, does not change the list
+        server.put(KEY + "/" + EtcdMasterHint.KEY, "id=z,address=127.0.0.1:9999", TimeValue.timeValueSeconds(1));
+        assertThat(awaitRound(provider, equalTo(unhinted)), equalTo(unhinted));
+        // nor does a missing one, once it expired
+        long expired = System.currentTimeMillis() + 3000;
+        while (server.get(KEY + "/" + EtcdMasterHint.KEY) != null && System.currentTimeMillis() < expired) {
+            Thread.sleep(100);
+        }
+        assertThat(server.get(KEY + "/" + EtcdMasterHint.KEY), nullValue());
+        assertThat(ports(provider.buildDynamicNodes()), equalTo(unhinted));
+    }
+
+    @Test
+    public void testRoundDeadlineAbortsTheRead() throws Exception {
+        server.put(KEY + "/1", "127.0.0.1:9301", null);
+        EtcdUnicastHostsProvider provider = provider(ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.watch.enabled", false)
+                .put("cloud.etcd.pool.max_connections", 1)
+                .put("cloud.etcd.round.deadline", "1s"));
+        assertThat(ports(provider.buildDynamicNodes()), hasItem(9301));
+
+        server.latency(TimeValue.timeValueSeconds(5));
+        assertThat(ports(provider.buildDynamicNodes()), hasItem(9301));
+        assertThat(etcdService.store().stats().deadlineExceeded(), equalTo(1L));
+
+        // the late read released the single pooled connection well before etcd answers it
+        server.clearFaults();
+        server.put(KEY + "/2", "127.0.0.1:9302", null);
+        long start = System.currentTimeMillis();
+        awaitRound(provider, hasItems(9301, 9302));
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+        assertThat(etcdService.store().stats().deadlineExceeded(), equalTo(1L));
+    }
+
+    @Test
+    public void testFirstRoundDeadlineServesPersistedMembers() throws Exception {
+        Settings dataSettings = ImmutableSettings.settingsBuilder().put("path.data", folder.newFolder().getAbsolutePath()).build();
+        NodeEnvironment dataEnvironment = new NodeEnvironment(dataSettings, new Environment(dataSettings));
+        try {
+            new EtcdMembershipFile(Loggers.getLogger(EtcdUnicastHostsProviderTest.class), dataEnvironment.nodeDataLocations()[0])
+                    .write(10, ImmutableMap.of("1", "127.0.0.1:9301", "2", "127.0.0.1:9302"));
+            server.put(KEY + "/3", "127.0.0.1:9303", null);
+            server.latency(TimeValue.timeValueSeconds(3));
+            EtcdUnicastHostsProvider provider = provider(ImmutableSettings.settingsBuilder()
+                    .put(dataSettings)
+                    .put("cloud.etcd.watch.enabled", false)
+                    .put("cloud.etcd.snapshot.enabled", true)
+                    .put("cloud.etcd.round.deadline", "1s"), dataEnvironment);
+
+            // no round completed yet, the membership of the previous run is served
+            List<Integer> ports = ports(provider.buildDynamicNodes());
+            assertThat(ports, hasItems(9301, 9302));
+            assertThat(ports, not(hasItem(9303)));
+            assertThat(etcdService.store().stats().deadlineExceeded(), equalTo(1L));
+        } finally {
+            etcdService.stop();
+            etcdService.close();
+            etcdService = null;
+            dataEnvironment.close();
+        }
+    }
+
+    /**
+     * Runs rounds until the ports of the nodes match, the watch applying changes asynchronously.
+     */
+    private static List<Integer> awaitRound(EtcdUnicastHostsProvider provider, Matcher<? super List<Integer>> matcher) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        List<Integer> ports = ports(provider.buildDynamicNodes());
+        while (!matcher.matches(ports) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            ports = ports(provider.buildDynamicNodes());
+        }
+        assertThat(ports, matcher);
+        return ports;
+    }
+
+    EtcdUnicastHostsProvider provider(ImmutableSettings.Builder builder) {
+        return provider(builder, nodeEnvironment);
+    }
+
+    /**
+     * @param builder the settings of the test, overriding the defaults of the fixture
+     */
+    EtcdUnicastHostsProvider provider(ImmutableSettings.Builder builder, NodeEnvironment nodeEnvironment) {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("cloud.etcd.host", server.address())
+                .put("cloud.etcd.key", KEY)
+                .put("cloud.etcd.instance.key", "self")
+                .put("cloud.etcd.bootstrap.single_node", true)
+                .put("cloud.etcd.snapshot.enabled", false)
+                .put("cloud.etcd.read.freshness", "0ms")
+                .put("cloud.etcd.limit.reads_per_second", 0)
+                .put(builder.build())
+                .build();
+        etcdService = new EtcdService(settings, threadPool);
+        TransportService transportService = new TransportService(new AddressOnlyTransport(settings, threadPool, 9399), threadPool);
+        return new EtcdUnicastHostsProvider(settings, transportService, null, threadPool, etcdService, nodeEnvironment);
+    }
+
+    static List<Integer> ports(List<DiscoveryNode> nodes) {
+        List<Integer> ports = new ArrayList<>();
+        for (DiscoveryNode node : nodes) {
+            ports.add(((InetSocketTransportAddress) node.address()).address().getPort());
+        }
+        return ports;
+    }
+}
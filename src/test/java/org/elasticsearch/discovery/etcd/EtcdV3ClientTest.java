@@ -0,0 +1,337 @@
+package org.elasticsearch.discovery.etcd;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs the v3 client against a minimal stand-in of the etcd JSON gateway.
+ */
+public class EtcdV3ClientTest {
+
+    private static final ESLogger logger = Loggers.getLogger(EtcdV3ClientTest.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+
+    private final Map<String, ObjectNode> kvs = new TreeMap<>();
+
+    private final List<ObjectNode> history = new ArrayList<>();
+
+    private long revision = 1;
+
+    private long leases = 0;
+
+    private int puts = 0;
+
+    private int keepAlives = 0;
+
+    /** keeps watches open without any event, until the stub stops */
+    private volatile boolean holdWatches = false;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    @Before
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v3/lease/grant", new JsonHandler() {
+            @Override
+            JsonNode handle(JsonNode request) {
+                ObjectNode response = MAPPER.createObjectNode();
+                response.put("ID", String.valueOf(++leases));
+                response.put("TTL", request.path("TTL").asText());
+                return response;
+            }
+        });
+        server.createContext("/v3/lease/keepalive", new JsonHandler() {
+            @Override
+            JsonNode handle(JsonNode request) {
+                keepAlives++;
+                ObjectNode response = MAPPER.createObjectNode();
+                ObjectNode result = response.putObject("result");
+                result.put("ID", request.path("ID").asText());
+                result.put("TTL", "6");
+                return response;
+            }
+        });
+        server.createContext("/v3/kv/put", new JsonHandler() {
+            @Override
+            JsonNode handle(JsonNode request) {
+                puts++;
+                ObjectNode kv = MAPPER.createObjectNode();
+                kv.put("key", request.path("key").asText());
+                kv.put("value", request.path("value").asText());
+                kv.put("lease", request.path("lease").asText());
+                kv.put("mod_revision", String.valueOf(++revision));
+                kvs.put(EtcdV3Client.decode(request.path("key").asText()), kv);
+                ObjectNode event = MAPPER.createObjectNode();
+                event.set("kv", kv);
+                history.add(event);
+                return header();
+            }
+        });
+        server.createContext("/v3/lease/revoke", new JsonHandler() {
+            @Override
+            JsonNode handle(JsonNode request) {
+                String lease = request.path("ID").asText();
+                for (Iterator<ObjectNode> it = kvs.values().iterator(); it.hasNext(); ) {
+                    if (lease.equals(it.next().path("lease").asText())) {
+                        it.remove();
+                    }
+                }
+                return header();
+            }
+        });
+        server.createContext("/v3/kv/range", new JsonHandler() {
+            @Override
+            JsonNode handle(JsonNode request) {
+                String from = EtcdV3Client.decode(request.path("key").asText());
+                String to = EtcdV3Client.decode(request.path("range_end").asText());
+                ObjectNode response = header();
+                ArrayNode found = response.putArray("kvs");
+                for (Map.Entry<String, ObjectNode> entry : kvs.entrySet()) {
+                    if (to.isEmpty() ? entry.getKey().equals(from) : entry.getKey().compareTo(from) >= 0 && entry.getKey().compareTo(to) < 0) {
+                        found.add(entry.getValue());
+                    }
+                }
+                return response;
+            }
+        });
+        server.createContext("/v3/watch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                JsonNode request = MAPPER.readTree(exchange.getRequestBody()).path("create_request");
+                long start = request.path("start_revision").asLong();
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    ObjectNode created = MAPPER.createObjectNode();
+                    created.putObject("result").put("created", true);
+                    out.write(MAPPER.writeValueAsBytes(created));
+                    out.write('\n');
+                    if (holdWatches) {
+                        out.flush();
+                        try {
+                            stopped.await(30, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return;
+                    }
+                    ObjectNode message = MAPPER.createObjectNode();
+                    ArrayNode events = message.putObject("result").putArray("events");
+                    synchronized (EtcdV3ClientTest.this) {
+                        for (ObjectNode event : history) {
+                            if (event.path("kv").path("mod_revision").asLong() >= start) {
+                                events.add(event);
+                            }
+                        }
+                    }
+                    out.write(MAPPER.writeValueAsBytes(message));
+                    out.write('\n');
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopStub() {
+        stopped.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testRegisterAndList() {
+        EtcdV3Client client = newClient();
+        try {
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            assertThat(puts, equalTo(1));
+            assertThat(keepAlives, equalTo(1));
+
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9301", null);
+            assertThat(puts, equalTo(2));
+
+            EtcdListing listing = client.listMembers("transport");
+            assertThat(listing.etcdIndex, equalTo(revision));
+            assertThat(listing.members.size(), equalTo(1));
+            assertThat(listing.members.get("node1"), equalTo("10.0.0.1:9301"));
+            assertThat(client.stats().latency(EtcdStats.Operation.UPDATE).count(), equalTo(5L));
+            assertThat(client.stats().latency(EtcdStats.Operation.QUERY).count(), equalTo(1L));
+            assertThat(client.stats().bytesRead(), greaterThan(0L));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testWatch() {
+        EtcdV3Client client = newClient();
+        EtcdV3Client other = newClient();
+        try {
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            EtcdListing listing = client.listMembers("transport");
+            other.register(Collections.singletonList("node2"), "transport", "10.0.0.2:9300", null);
+
+            List<EtcdResult> events = client.watch(listing.etcdIndex + 1);
+            assertThat(events.size(), equalTo(1));
+            assertThat(events.get(0).action, equalTo("set"));
+            assertThat(events.get(0).node.key, equalTo("/services/elasticsearch/node2"));
+            assertThat(events.get(0).node.value, equalTo("10.0.0.2:9300"));
+            assertThat(events.get(0).node.modifiedIndex, equalTo(revision));
+        } finally {
+            client.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testCloseInterruptsWatch() throws Exception {
+        holdWatches = true;
+        final EtcdV3Client client = new EtcdV3Client(logger, "127.0.0.1:" + server.getAddress().getPort(), "/services/elasticsearch", 5,
+                ImmutableSettings.settingsBuilder().put("cloud.etcd.watch.timeout", "30s").build());
+        final CountDownLatch watching = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watching.countDown();
+                try {
+                    client.watch(2);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        watcher.start();
+        watching.await();
+        // let the watch block on the open stream
+        Thread.sleep(500);
+        assertThat(watcher.isAlive(), is(true));
+
+        long start = System.currentTimeMillis();
+        client.close();
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+        watcher.join(2000);
+        assertThat(watcher.isAlive(), is(false));
+        assertThat(failure.get(), notNullValue());
+    }
+
+    @Test
+    public void testDeregister() {
+        EtcdV3Client client = newClient();
+        EtcdV3Client other = newClient();
+        try {
+            assertThat(client.deregister(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null), is(false));
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            other.register(Collections.singletonList("node2"), "transport", "10.0.0.2:9300", null);
+            assertThat(client.deregister(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null), is(true));
+
+            EtcdListing listing = client.listMembers("transport");
+            assertThat(listing.members.keySet(), contains("node2"));
+        } finally {
+            client.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testMasterHint() {
+        EtcdV3Client client = newClient();
+        try {
+            // published with the lease of the registration
+            assertThat(client.publish(EtcdMasterHint.KEY, "id=a,address=10.0.0.1:9300"), is(false));
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            assertThat(client.publish(EtcdMasterHint.KEY, "id=a,address=10.0.0.1:9300"), is(true));
+            assertThat(client.publish(EtcdMasterHint.KEY, "id=a,address=10.0.0.1:9300"), is(true));
+            assertThat(puts, equalTo(2));
+
+            assertThat(client.get(EtcdMasterHint.KEY), equalTo("id=a,address=10.0.0.1:9300"));
+            assertThat(client.get("_missing"), nullValue());
+            assertThat(client.listMembers("transport").members.keySet(), contains("node1"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testListClusters() {
+        EtcdV3Client client = newClient();
+        EtcdV3Client logs = new EtcdV3Client(logger, "127.0.0.1:" + server.getAddress().getPort(), "/services/logs", 5, ImmutableSettings.EMPTY);
+        EtcdV3Client parent = new EtcdV3Client(logger, "127.0.0.1:" + server.getAddress().getPort(), "/services", 5, ImmutableSettings.EMPTY);
+        try {
+            client.register(Collections.singletonList("node1"), "transport", "10.0.0.1:9300", null);
+            client.publish(EtcdMasterHint.KEY, "id=a,address=10.0.0.1:9300");
+            logs.register(Collections.singletonList("node2"), "transport", "10.0.0.2:9300", new EtcdNodeAttributes(true, false, null));
+
+            EtcdListing listing = parent.listClusters("transport");
+            assertThat(listing.members.keySet(), containsInAnyOrder("elasticsearch/node1", "logs/node2"));
+            assertThat(listing.attributes.get("logs/node2").data(), is(false));
+        } finally {
+            client.close();
+            logs.close();
+            parent.close();
+        }
+    }
+
+    @Test
+    public void testPrefixEnd() {
+        assertThat(EtcdV3Client.prefixEnd("/services/elasticsearch/"), equalTo("/services/elasticsearch0"));
+    }
+
+    private EtcdV3Client newClient() {
+        return new EtcdV3Client(logger, "127.0.0.1:" + server.getAddress().getPort(), "/services/elasticsearch", 5,
+                ImmutableSettings.EMPTY);
+    }
+
+    private ObjectNode header() {
+        ObjectNode response = MAPPER.createObjectNode();
+        response.putObject("header").put("revision", String.valueOf(revision));
+        return response;
+    }
+
+    private abstract class JsonHandler implements HttpHandler {
+        abstract JsonNode handle(JsonNode request);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            JsonNode request = MAPPER.readTree(exchange.getRequestBody());
+            byte[] body;
+            synchronized (EtcdV3ClientTest.this) {
+                body = MAPPER.writeValueAsBytes(handle(request));
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}